@@ -0,0 +1,70 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates realistic audit spans, with the attributes set by the Logboek interceptor and the
+ * default SDK resource, as input for the serialization and insert benchmarks.
+ */
+final class BenchmarkSpans {
+
+    private BenchmarkSpans() {
+    }
+
+    static List<SpanData> create(int count) {
+        List<SpanData> spans = new ArrayList<>(count);
+        SpanProcessor collector = new SpanProcessor() {
+            @Override
+            public void onStart(Context parentContext, ReadWriteSpan span) {
+            }
+
+            @Override
+            public boolean isStartRequired() {
+                return false;
+            }
+
+            @Override
+            public void onEnd(ReadableSpan span) {
+                spans.add(span.toSpanData());
+            }
+
+            @Override
+            public boolean isEndRequired() {
+                return true;
+            }
+        };
+
+        Resource resource = Resource.getDefault().merge(Resource.create(Attributes.of(
+                AttributeKey.stringKey("service.name"), "benchmark-service")));
+        try (SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+                .setResource(resource)
+                .addSpanProcessor(collector)
+                .build()) {
+            Tracer tracer = tracerProvider.get("benchmark");
+            for (int i = 0; i < count; i++) {
+                Span span = tracer.spanBuilder("behandelen-aanvraag").startSpan();
+                span.setAttribute("dpl.core.processing_activity_id", "activity-" + (i % 16));
+                span.setAttribute("dpl.core.data_subject_id", String.format("%09d", i));
+                span.setAttribute("dpl.core.data_subject_id_type", "BSN");
+                span.setAttribute("dpl.core.foreign_operation.span_id", "00f067aa0ba902b7");
+                span.setStatus(StatusCode.OK);
+                span.end();
+            }
+        }
+        return spans;
+    }
+}
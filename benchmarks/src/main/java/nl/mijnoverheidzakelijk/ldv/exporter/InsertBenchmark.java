@@ -0,0 +1,93 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import com.sun.net.httpserver.HttpServer;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import nl.mijnoverheidzakelijk.ldv.repository.ClickHouseRepository;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the client side of an insert: encoding a batch and sending it through
+ * {@link ClickHouseRepository} to a local stub server that discards the body and answers
+ * like ClickHouse. The stub listens on the endpoint from {@code microprofile-config.properties}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertBenchmark {
+
+    private static final int STUB_PORT = 18123;
+
+    @Param({"512", "4096"})
+    int batchSize;
+
+    @Param({"JSONEachRow", "RowBinary"})
+    String format;
+
+    private HttpServer server;
+    private ClickHouseRepository repository;
+    private List<SpanData> spans;
+    private SpanPayloadWriter writer;
+
+    @Setup
+    public void setUp() throws IOException, ConfigurationException {
+        server = HttpServer.create(new InetSocketAddress("localhost", STUB_PORT), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+            exchange.getResponseHeaders().add("X-ClickHouse-Query-Id", "benchmark");
+            exchange.getResponseHeaders().add("X-ClickHouse-Summary", "{\"read_rows\":\"0\",\"read_bytes\":\"0\","
+                    + "\"written_rows\":\"" + batchSize + "\",\"written_bytes\":\"0\",\"total_rows_to_read\":\"0\","
+                    + "\"result_rows\":\"0\",\"result_bytes\":\"0\",\"elapsed_ns\":\"0\"}");
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+
+        repository = new ClickHouseRepository();
+        spans = BenchmarkSpans.create(batchSize);
+        writer = SpanPayloadWriter.forFormat(ClickHouseFormat.valueOf(format));
+    }
+
+    @TearDown
+    public void tearDown() {
+        repository.close();
+        server.stop(0);
+    }
+
+    @Benchmark
+    public void encodeAndInsert() throws IOException {
+        PayloadBuffer payload = PayloadBuffer.acquire();
+        try {
+            writer.write(spans, payload);
+            repository.insert("logboek", payload.toByteBuffer(), writer.format());
+        } finally {
+            payload.release();
+        }
+    }
+}
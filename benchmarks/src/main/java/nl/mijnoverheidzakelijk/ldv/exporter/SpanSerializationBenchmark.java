@@ -0,0 +1,58 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a batch of spans into an insert payload, in both supported formats,
+ * for batch sizes ranging from the SDK default to a merged adaptive batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpanSerializationBenchmark {
+
+    @Param({"64", "512", "4096"})
+    int batchSize;
+
+    @Param({"JSONEachRow", "RowBinary"})
+    String format;
+
+    private List<SpanData> spans;
+    private SpanPayloadWriter writer;
+
+    @Setup
+    public void setUp() {
+        spans = BenchmarkSpans.create(batchSize);
+        writer = SpanPayloadWriter.forFormat(ClickHouseFormat.valueOf(format));
+    }
+
+    @Benchmark
+    public int serializeBatch() throws IOException {
+        PayloadBuffer payload = PayloadBuffer.acquire();
+        try {
+            writer.write(spans, payload);
+            return payload.size();
+        } finally {
+            payload.release();
+        }
+    }
+}
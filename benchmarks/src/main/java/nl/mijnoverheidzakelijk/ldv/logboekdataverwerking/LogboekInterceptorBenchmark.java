@@ -0,0 +1,123 @@
+package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead {@link LogboekInterceptor#log(InvocationContext)} adds to an audited
+ * request, and {@link ProcessingHandler} span creation and enrichment on their own, with a real
+ * SDK tracer and the ring buffer span processor of {@code TelemetryConfig} behind them. Lives in the
+ * interceptor's package to wire its injected fields directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogboekInterceptorBenchmark {
+
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    @Param({"false", "true"})
+    boolean withTraceparent;
+
+    private LogboekInterceptor interceptor;
+    private ProcessingHandler handler;
+    private LogboekContext logboekContext;
+    private InvocationContext invocation;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        handler = new ProcessingHandler();
+        Map<String, List<String>> headerValues = withTraceparent
+                ? Map.of("traceparent", List.of(TRACEPARENT), "traceparent-processor", List.of("https://example.org"))
+                : Map.of();
+
+        interceptor = new LogboekInterceptor();
+        interceptor.handler = handler;
+        interceptor.headers = proxy(HttpHeaders.class, (method, args) -> switch (method.getName()) {
+            case "getHeaderString" -> {
+                List<String> values = headerValues.get(((String) args[0]).toLowerCase());
+                yield values == null ? null : values.get(0);
+            }
+            case "getRequestHeader" -> headerValues.get(((String) args[0]).toLowerCase());
+            case "getRequestHeaders" -> {
+                MultivaluedMap<String, String> requestHeaders = new MultivaluedHashMap<>();
+                requestHeaders.putAll(headerValues);
+                yield requestHeaders;
+            }
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+
+        Method target = Endpoint.class.getMethod("handle");
+        invocation = proxy(InvocationContext.class, (method, args) -> switch (method.getName()) {
+            case "getMethod" -> target;
+            case "proceed" -> "ok";
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+
+        logboekContext = new LogboekContext();
+        logboekContext.setDataSubjectId("000000000");
+        logboekContext.setDataSubjectType("BSN");
+        logboekContext.setStatus(StatusCode.OK);
+        interceptor.logboekContext = logboekContext;
+    }
+
+    @Benchmark
+    public Object interceptedCall() throws Exception {
+        return interceptor.log(invocation);
+    }
+
+    @Benchmark
+    public Span startAndEnrichSpan() {
+        Span span = handler.startSpan("behandelen-aanvraag", null);
+        handler.addLogboekContextToSpan(span, logboekContext);
+        span.end();
+        return span;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> method.getDeclaringClass() == Object.class
+                        ? method.invoke(handler, args)
+                        : handler.invoke(method, args));
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+
+    /**
+     * Stand-in for an audited JAX-RS resource.
+     */
+    public static class Endpoint {
+        @Logboek(name = "behandelen-aanvraag", processingActivityId = "1234")
+        public String handle() {
+            return "ok";
+        }
+    }
+}
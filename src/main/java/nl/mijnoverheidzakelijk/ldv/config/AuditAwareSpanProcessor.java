@@ -0,0 +1,126 @@
+package nl.mijnoverheidzakelijk.ldv.config;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import nl.mijnoverheidzakelijk.ldv.logboekdataverwerking.LogboekAttributes;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link SpanProcessor} that always forwards processing records and samples technical spans.
+ * <p>
+ * A span carrying {@code dpl.core.processing_activity_id} is a processing record required by the
+ * Logboek standard and is always passed to the delegate. Any other span, such as an inner span
+ * created for diagnostics, is subject to a {@link SamplingPolicy}: the policy configured for its
+ * name, otherwise the policy for the processing activity of its nearest audited ancestor in the
+ * same process, otherwise the default policy.
+ * <p>
+ * The decision is made when a span ends, because the Logboek attributes may be set until then.
+ * Head sampling is deliberately not used: an unsampled parent would also suppress its audited
+ * children.
+ * <p>
+ * The inherited activity of a started span is held by its span context, not the span itself, and
+ * removed when the span ends. Spans on concurrent requests do not contend for a common lock.
+ */
+public final class AuditAwareSpanProcessor implements SpanProcessor {
+
+    private final SpanProcessor delegate;
+    private final SamplingPolicy defaultPolicy;
+    private final Map<String, SamplingPolicy> spanPolicies;
+    private final Map<String, SamplingPolicy> activityPolicies;
+    private final LdvMetrics metrics;
+    private final Map<SpanContext, String> inheritedActivities = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate         the processor receiving the kept spans
+     * @param defaultPolicy    policy for technical spans without a more specific policy
+     * @param spanPolicies     policies by span name
+     * @param activityPolicies policies by processing activity id of the nearest audited ancestor
+     * @param metrics          metrics to count sampled out spans on
+     */
+    public AuditAwareSpanProcessor(SpanProcessor delegate, SamplingPolicy defaultPolicy, Map<String, SamplingPolicy> spanPolicies,
+                                   Map<String, SamplingPolicy> activityPolicies, LdvMetrics metrics) {
+        this.delegate = delegate;
+        this.defaultPolicy = defaultPolicy;
+        this.spanPolicies = Map.copyOf(spanPolicies);
+        this.activityPolicies = Map.copyOf(activityPolicies);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Remembers the processing activity of the parent for technical spans, when policies by
+     * activity are configured.
+     */
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+        if (!activityPolicies.isEmpty() && isTechnical(span)) {
+            String activity = parentActivity(parentContext);
+            if (activity != null) {
+                inheritedActivities.put(span.getSpanContext(), activity);
+            }
+        }
+        if (delegate.isStartRequired()) {
+            delegate.onStart(parentContext, span);
+        }
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return !activityPolicies.isEmpty() || delegate.isStartRequired();
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        String inherited = activityPolicies.isEmpty() ? null : inheritedActivities.remove(span.getSpanContext());
+        if (isTechnical(span) && !policyFor(span, inherited).sample(span)) {
+            metrics.recordSampledOut();
+            return;
+        }
+        delegate.onEnd(span);
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return delegate.shutdown();
+    }
+
+    @Override
+    public CompletableResultCode forceFlush() {
+        return delegate.forceFlush();
+    }
+
+    private SamplingPolicy policyFor(ReadableSpan span, String inheritedActivity) {
+        SamplingPolicy policy = spanPolicies.get(span.getName());
+        if (policy == null && inheritedActivity != null) {
+            policy = activityPolicies.get(inheritedActivity);
+        }
+        return policy != null ? policy : defaultPolicy;
+    }
+
+    private String parentActivity(Context parentContext) {
+        if (!(Span.fromContext(parentContext) instanceof ReadableSpan parent)) {
+            return null;
+        }
+        String activity = parent.getAttribute(LogboekAttributes.PROCESSING_ACTIVITY_ID);
+        if (activity == null || activity.isEmpty()) {
+            activity = inheritedActivities.get(parent.getSpanContext());
+        }
+        return activity;
+    }
+
+    private static boolean isTechnical(ReadableSpan span) {
+        return !LogboekAttributes.isProcessingRecord(span);
+    }
+}
@@ -23,8 +23,8 @@ public class ConfigurationLoader {
      * @return the configuration instance
      * @throws ConfigurationException if configuration cannot be accessed
      */
-    public static synchronized Config getConfiguration() throws ConfigurationException {
-            return configuration;
+    public static Config getConfiguration() throws ConfigurationException {
+        return configuration;
     }
 
     /**
@@ -39,4 +39,19 @@ public class ConfigurationLoader {
     public static <T> T getValueByKey(String key, Class<T> tClass) throws ConfigurationException {
         return configuration.getValue(key, tClass);
     }
+
+    /**
+     * Resolves an optional configuration value by key, falling back to a default when the
+     * key is not set.
+     *
+     * @param key          the configuration key
+     * @param tClass       the expected type
+     * @param defaultValue the value returned when the key is absent
+     * @param <T>          the generic type of the returned value
+     * @return the resolved value or {@code defaultValue}
+     * @throws ConfigurationException if the value cannot be converted
+     */
+    public static <T> T getValueByKey(String key, Class<T> tClass, T defaultValue) throws ConfigurationException {
+        return configuration.getOptionalValue(key, tClass).orElse(defaultValue);
+    }
 }
@@ -0,0 +1,76 @@
+package nl.mijnoverheidzakelijk.ldv.config;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.InstrumentType;
+import io.opentelemetry.sdk.metrics.data.AggregationTemporality;
+import io.opentelemetry.sdk.metrics.data.LongPointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.metrics.data.MetricDataType;
+import io.opentelemetry.sdk.metrics.export.MetricExporter;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link MetricExporter} that reads the span processor's own telemetry and reports spans that
+ * were dropped because the processor queue was full.
+ * <p>
+ * The span processor counts processed spans in the {@code processedSpans} metric and
+ * marks dropped ones with {@code dropped=true}. Each reporting interval with drops is logged as a
+ * warning together with the running total, which is also available via {@link #getDroppedSpans()}.
+ */
+public final class DroppedSpanReporter implements MetricExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(DroppedSpanReporter.class.getName());
+
+    private static final String PROCESSED_SPANS_METRIC = "processedSpans";
+    private static final AttributeKey<Boolean> DROPPED = AttributeKey.booleanKey("dropped");
+
+    private final AtomicLong droppedSpans = new AtomicLong();
+
+    /**
+     * @return the total number of spans dropped since startup
+     */
+    public long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<MetricData> metrics) {
+        long dropped = 0;
+        for (MetricData metric : metrics) {
+            if (!PROCESSED_SPANS_METRIC.equals(metric.getName()) || metric.getType() != MetricDataType.LONG_SUM) {
+                continue;
+            }
+            for (LongPointData point : metric.getLongSumData().getPoints()) {
+                if (Boolean.TRUE.equals(point.getAttributes().get(DROPPED))) {
+                    dropped += point.getValue();
+                }
+            }
+        }
+        if (dropped > 0) {
+            long total = droppedSpans.addAndGet(dropped);
+            LOGGER.log(Level.WARNING, "Span processor queue full, dropped {0} span(s) ({1} since startup)",
+                    new Object[]{dropped, total});
+        }
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public AggregationTemporality getAggregationTemporality(InstrumentType instrumentType) {
+        return AggregationTemporality.DELTA;
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+    }
+}
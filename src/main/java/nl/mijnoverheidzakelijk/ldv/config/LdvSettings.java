@@ -0,0 +1,558 @@
+package nl.mijnoverheidzakelijk.ldv.config;
+
+import com.clickhouse.data.ClickHouseFormat;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable snapshot of all {@code logboekdataverwerking.*} configuration values.
+ * <p>
+ * The snapshot is read once through {@link ConfigurationLoader} and shared through a volatile
+ * field, so components read their settings without locking or further configuration lookups.
+ * Optional keys that are missing get their default; optional keys with an invalid value are
+ * logged and also fall back to their default, so a typo does not stop the application. Keys
+ * under {@code logboekdataverwerking.} that are not known are logged as well. Required keys are
+ * checked by the component that needs them, see {@link #require(String, String)}.
+ * <p>
+ * {@link #refresh()} reads the configuration again and replaces the snapshot atomically.
+ * Components take their settings when they are created; a refresh affects components created
+ * afterwards.
+ * <p>
+ * Named pipelines are configured under {@code logboekdataverwerking.pipeline.<name>.}, with the
+ * same keys as the default pipeline. A pipeline inherits every key it does not set from the
+ * default pipeline, see {@link #pipeline(String)}.
+ *
+ * @param pipeline              the pipeline name, empty for the default pipeline
+ * @param serviceName           {@code logboekdataverwerking.service-name}, may be {@code null}
+ * @param enabled               {@code logboekdataverwerking.enabled}
+ * @param clickHouse            the {@code logboekdataverwerking.clickhouse.*} settings
+ * @param batch                 the {@code logboekdataverwerking.batch.*} settings
+ * @param queue                 the {@code logboekdataverwerking.queue.*} settings
+ * @param spool                 the {@code logboekdataverwerking.spool.*} settings
+ * @param exporter              the {@code logboekdataverwerking.exporter.*} settings
+ * @param metrics               the {@code logboekdataverwerking.metrics.*} settings
+ * @param sampling              the {@code logboekdataverwerking.sampling.*} settings
+ * @param shutdownTimeoutMillis {@code logboekdataverwerking.shutdown.timeout-ms}
+ * @param pipelines             the named pipelines by name, only set on the default pipeline
+ */
+public record LdvSettings(String pipeline, String serviceName, boolean enabled, ClickHouse clickHouse, Batch batch, Queue queue,
+                          Spool spool, Exporter exporter, Metrics metrics, Sampling sampling, long shutdownTimeoutMillis,
+                          Map<String, LdvSettings> pipelines) {
+
+    private static final Logger LOGGER = Logger.getLogger(LdvSettings.class.getName());
+
+    private static final String PREFIX = "logboekdataverwerking.";
+    private static final String PIPELINE_PREFIX = PREFIX + "pipeline.";
+    private static final String SAMPLING_SPAN_PREFIX = "sampling.span.";
+    private static final String SAMPLING_ACTIVITY_PREFIX = "sampling.activity.";
+
+    private static volatile LdvSettings current;
+
+    /**
+     * Connection, insert and schema settings of ClickHouse.
+     *
+     * @param endpoints                 the comma separated {@code endpoint} values, empty if not set
+     * @param username                  {@code username}, may be {@code null}
+     * @param password                  {@code password}, may be {@code null}
+     * @param database                  {@code database}, may be {@code null}
+     * @param table                     {@code table}, may be {@code null}
+     * @param format                    {@code format}
+     * @param insertTimeoutMillis       {@code insert-timeout-ms}
+     * @param queryTimeoutMillis        {@code query-timeout-ms}
+     * @param requestThreads            {@code request-threads}
+     * @param asyncInsert               {@code async-insert}
+     * @param waitForAsyncInsert        {@code wait-for-async-insert}
+     * @param deduplicate               {@code deduplicate}
+     * @param deduplicationWindow       {@code deduplication-window}
+     * @param ttlDays                   {@code ttl-days}
+     * @param migrateLegacySchema       {@code migrate-legacy-schema}
+     * @param compression               {@code compression}: none, lz4 or zstd
+     * @param compressionLevel          {@code compression-level}, {@code null} for the codec default
+     * @param compressionThresholdBytes {@code compression-threshold-bytes}
+     * @param resourceTable             {@code resource-table}
+     * @param loadBalancing             {@code load-balancing}: least-in-flight or round-robin
+     * @param ejectAfterFailures        {@code eject-after-failures}
+     * @param healthCheckIntervalMillis {@code health-check-interval-ms}
+     * @param cluster                   {@code cluster}, {@code null} if not clustered
+     * @param shardingKey               {@code sharding-key}
+     */
+    public record ClickHouse(List<String> endpoints, String username, String password, String database, String table,
+                             ClickHouseFormat format, long insertTimeoutMillis, long queryTimeoutMillis, int requestThreads,
+                             boolean asyncInsert, boolean waitForAsyncInsert, boolean deduplicate, int deduplicationWindow,
+                             int ttlDays, boolean migrateLegacySchema, String compression, Integer compressionLevel,
+                             int compressionThresholdBytes, boolean resourceTable, String loadBalancing, int ejectAfterFailures,
+                             long healthCheckIntervalMillis, String cluster, String shardingKey) {
+
+        /**
+         * @throws ConfigurationException if a key needed to connect to ClickHouse is missing
+         */
+        public void requireConnection() throws ConfigurationException {
+            if (endpoints.isEmpty()) {
+                throw new ConfigurationException("No endpoint configured in " + PREFIX + "clickhouse.endpoint");
+            }
+            require(username, "clickhouse.username");
+            require(password, "clickhouse.password");
+            require(database, "clickhouse.database");
+            require(table, "clickhouse.table");
+        }
+
+        /**
+         * @return the settings with the password masked, so they can be logged
+         */
+        @Override
+        public String toString() {
+            return "ClickHouse[endpoints=" + endpoints + ", username=" + username
+                    + ", password=" + (password == null ? null : "****") + ", database=" + database + ", table=" + table
+                    + ", format=" + format + ", insertTimeoutMillis=" + insertTimeoutMillis
+                    + ", queryTimeoutMillis=" + queryTimeoutMillis + ", requestThreads=" + requestThreads
+                    + ", asyncInsert=" + asyncInsert + ", waitForAsyncInsert=" + waitForAsyncInsert
+                    + ", deduplicate=" + deduplicate + ", deduplicationWindow=" + deduplicationWindow + ", ttlDays=" + ttlDays
+                    + ", migrateLegacySchema=" + migrateLegacySchema + ", compression=" + compression
+                    + ", compressionLevel=" + compressionLevel + ", compressionThresholdBytes=" + compressionThresholdBytes
+                    + ", resourceTable=" + resourceTable + ", loadBalancing=" + loadBalancing
+                    + ", ejectAfterFailures=" + ejectAfterFailures + ", healthCheckIntervalMillis=" + healthCheckIntervalMillis
+                    + ", cluster=" + cluster + ", shardingKey=" + shardingKey + "]";
+        }
+    }
+
+    /**
+     * Batching of the span processor.
+     *
+     * @param maxQueueSize            {@code max-queue-size}
+     * @param maxExportBatchSize      {@code max-export-batch-size}
+     * @param scheduleDelayMillis     {@code schedule-delay-ms}
+     * @param exportTimeoutMillis     {@code export-timeout-ms}
+     * @param adaptive                {@code adaptive.enabled}
+     * @param adaptiveMaxBatchSize    {@code adaptive.max-batch-size}
+     * @param adaptiveMaxLingerMillis {@code adaptive.max-linger-ms}
+     */
+    public record Batch(int maxQueueSize, int maxExportBatchSize, long scheduleDelayMillis, long exportTimeoutMillis,
+                        boolean adaptive, int adaptiveMaxBatchSize, long adaptiveMaxLingerMillis) {
+    }
+
+    /**
+     * Overflow handling of the span processor queue.
+     *
+     * @param overflowPolicy     {@code overflow-policy}: block, drop-oldest-non-audit or spill
+     * @param blockTimeoutMillis {@code block-timeout-ms}
+     */
+    public record Queue(String overflowPolicy, long blockTimeoutMillis) {
+
+        /**
+         * @return whether overflowing spans are spilled to the spool
+         */
+        public boolean spill() {
+            return "spill".equals(overflowPolicy);
+        }
+    }
+
+    /**
+     * The on-disk spool.
+     *
+     * @param enabled               {@code enabled}
+     * @param directory             {@code directory}
+     * @param segmentSizeBytes      {@code segment-size-bytes}
+     * @param maxSizeBytes          {@code max-size-bytes}
+     * @param maxRetryBackoffMillis {@code max-retry-backoff-ms}
+     * @param fsync                 {@code fsync}: always, interval or never
+     * @param fsyncIntervalMillis   {@code fsync-interval-ms}
+     */
+    public record Spool(boolean enabled, Path directory, int segmentSizeBytes, long maxSizeBytes, long maxRetryBackoffMillis,
+                        String fsync, long fsyncIntervalMillis) {
+    }
+
+    /**
+     * The export backend.
+     *
+     * @param type                     {@code type}
+     * @param maxInFlight              {@code max-in-flight}
+     * @param fileDirectory            {@code file.directory}
+     * @param fileMaxSizeBytes         {@code file.max-size-bytes}
+     * @param fileRotateIntervalMillis {@code file.rotate-interval-ms}
+     * @param memoryCapacity           {@code memory.capacity}
+     */
+    public record Exporter(String type, int maxInFlight, Path fileDirectory, long fileMaxSizeBytes, long fileRotateIntervalMillis,
+                           int memoryCapacity) {
+    }
+
+    /**
+     * Metrics of the export pipeline.
+     *
+     * @param otlpEndpoint   {@code otlp-endpoint}, empty if OTLP is off
+     * @param intervalMillis {@code interval-ms}
+     * @param jmxEnabled     {@code jmx.enabled}
+     */
+    public record Metrics(String otlpEndpoint, long intervalMillis, boolean jmxEnabled) {
+    }
+
+    /**
+     * Sampling of technical spans. Policies are kept as configured and are valid for
+     * {@link SamplingPolicy#parse(String)}.
+     *
+     * @param enabled          {@code enabled}
+     * @param defaultPolicy    {@code default}
+     * @param spanPolicies     {@code span.<name>} by span name
+     * @param activityPolicies {@code activity.<id>} by processing activity id
+     */
+    public record Sampling(boolean enabled, String defaultPolicy, Map<String, String> spanPolicies, Map<String, String> activityPolicies) {
+    }
+
+    private static final Set<String> KEYS = Set.of(
+            "service-name", "enabled", "shutdown.timeout-ms",
+            "clickhouse.endpoint", "clickhouse.username", "clickhouse.password", "clickhouse.database", "clickhouse.table",
+            "clickhouse.format", "clickhouse.insert-timeout-ms", "clickhouse.query-timeout-ms", "clickhouse.request-threads",
+            "clickhouse.async-insert", "clickhouse.wait-for-async-insert",
+            "clickhouse.deduplicate", "clickhouse.deduplication-window", "clickhouse.ttl-days", "clickhouse.migrate-legacy-schema",
+            "clickhouse.compression", "clickhouse.compression-level", "clickhouse.compression-threshold-bytes",
+            "clickhouse.resource-table", "clickhouse.load-balancing", "clickhouse.eject-after-failures",
+            "clickhouse.health-check-interval-ms", "clickhouse.cluster", "clickhouse.sharding-key",
+            "batch.max-queue-size", "batch.max-export-batch-size", "batch.schedule-delay-ms", "batch.export-timeout-ms",
+            "batch.adaptive.enabled", "batch.adaptive.max-batch-size", "batch.adaptive.max-linger-ms",
+            "queue.overflow-policy", "queue.block-timeout-ms",
+            "spool.enabled", "spool.directory", "spool.segment-size-bytes", "spool.max-size-bytes", "spool.max-retry-backoff-ms",
+            "spool.fsync", "spool.fsync-interval-ms",
+            "exporter.type", "exporter.max-in-flight", "exporter.file.directory", "exporter.file.max-size-bytes",
+            "exporter.file.rotate-interval-ms", "exporter.memory.capacity",
+            "metrics.otlp-endpoint", "metrics.interval-ms", "metrics.jmx.enabled",
+            "sampling.enabled", "sampling.default");
+
+    /**
+     * Returns the settings of a pipeline.
+     *
+     * @param name the pipeline name, empty or {@code null} for the default pipeline
+     * @return the settings of the pipeline
+     * @throws ConfigurationException if no keys are configured for the pipeline
+     */
+    public LdvSettings pipeline(String name) throws ConfigurationException {
+        if (name == null || name.isEmpty() || name.equals(pipeline)) {
+            return this;
+        }
+        LdvSettings settings = pipelines.get(name);
+        if (settings == null) {
+            throw new ConfigurationException("Unknown Logboek pipeline " + name + ", configure it with " + PIPELINE_PREFIX + name + ".*");
+        }
+        return settings;
+    }
+
+    /**
+     * Returns the current snapshot, loading it on first use.
+     *
+     * @return the settings
+     * @throws ConfigurationException if the configuration cannot be accessed or a value is invalid
+     */
+    public static LdvSettings current() throws ConfigurationException {
+        LdvSettings settings = current;
+        return settings != null ? settings : initialize();
+    }
+
+    /**
+     * Reads the configuration again and replaces the current snapshot.
+     *
+     * @return the new settings
+     * @throws ConfigurationException if the configuration cannot be accessed or a value is invalid
+     */
+    public static synchronized LdvSettings refresh() throws ConfigurationException {
+        LdvSettings settings = load();
+        current = settings;
+        return settings;
+    }
+
+    /**
+     * Checks a required value.
+     *
+     * @param value the value
+     * @param key   the key without the {@code logboekdataverwerking.} prefix
+     * @return the value
+     * @throws ConfigurationException if the value is missing
+     */
+    public static String require(String value, String key) throws ConfigurationException {
+        if (value == null || value.isBlank()) {
+            throw new ConfigurationException("Missing required configuration key " + PREFIX + key);
+        }
+        return value;
+    }
+
+    private static synchronized LdvSettings initialize() throws ConfigurationException {
+        if (current == null) {
+            current = load();
+        }
+        return current;
+    }
+
+    /**
+     * Reads all keys, including those of the named pipelines, into a new snapshot without replacing
+     * the current one.
+     *
+     * @return the settings
+     * @throws ConfigurationException if the configuration cannot be accessed or a value is invalid
+     */
+    public static LdvSettings load() throws ConfigurationException {
+        Set<String> names = new HashSet<>();
+        ConfigurationLoader.getConfiguration().getPropertyNames().forEach(names::add);
+
+        Map<String, LdvSettings> pipelines = new HashMap<>();
+        for (String name : names) {
+            int end = name.indexOf('.', PIPELINE_PREFIX.length());
+            if (name.startsWith(PIPELINE_PREFIX) && end > PIPELINE_PREFIX.length()) {
+                String pipeline = name.substring(PIPELINE_PREFIX.length(), end);
+                if (!pipelines.containsKey(pipeline)) {
+                    pipelines.put(pipeline, load(new Reader(names, pipeline), Map.of()));
+                }
+            }
+        }
+
+        Reader reader = new Reader(names, "");
+        LdvSettings settings = load(reader, Map.copyOf(pipelines));
+        reader.warnAboutUnknownKeys();
+        return settings;
+    }
+
+    private static LdvSettings load(Reader reader, Map<String, LdvSettings> pipelines) throws ConfigurationException {
+        String pipeline = reader.pipeline;
+
+        String table = reader.string("clickhouse.table", null);
+        String cluster = reader.string("clickhouse.cluster", null);
+        ClickHouse clickHouse = new ClickHouse(
+                endpoints(reader.string("clickhouse.endpoint", "")),
+                reader.string("clickhouse.username", null),
+                reader.string("clickhouse.password", null),
+                reader.string("clickhouse.database", null),
+                table,
+                reader.format("clickhouse.format", ClickHouseFormat.JSONEachRow),
+                reader.positive("clickhouse.insert-timeout-ms", 30_000L),
+                reader.positive("clickhouse.query-timeout-ms", 300_000L),
+                reader.positive("clickhouse.request-threads", 8),
+                reader.bool("clickhouse.async-insert", false),
+                reader.bool("clickhouse.wait-for-async-insert", true),
+                reader.bool("clickhouse.deduplicate", false),
+                reader.positive("clickhouse.deduplication-window", 1000),
+                reader.nonNegative("clickhouse.ttl-days", 0),
+                reader.bool("clickhouse.migrate-legacy-schema", false),
+                reader.oneOf("clickhouse.compression", "none", "none", "lz4", "zstd"),
+                reader.value("clickhouse.compression-level", Integer.class, null),
+                reader.nonNegative("clickhouse.compression-threshold-bytes", 8192),
+                reader.bool("clickhouse.resource-table", false),
+                reader.oneOf("clickhouse.load-balancing", "least-in-flight", "least-in-flight", "round-robin"),
+                reader.positive("clickhouse.eject-after-failures", 3),
+                reader.positive("clickhouse.health-check-interval-ms", 5_000L),
+                cluster == null || cluster.isBlank() ? null : cluster,
+                reader.string("clickhouse.sharding-key", "rand()"));
+
+        int maxExportBatchSize = reader.positive("batch.max-export-batch-size", 512);
+        long scheduleDelay = reader.positive("batch.schedule-delay-ms", 5_000L);
+        Batch batch = new Batch(
+                reader.positive("batch.max-queue-size", 2048),
+                maxExportBatchSize,
+                scheduleDelay,
+                reader.positive("batch.export-timeout-ms", 30_000L),
+                reader.bool("batch.adaptive.enabled", false),
+                reader.positive("batch.adaptive.max-batch-size", 16 * maxExportBatchSize),
+                reader.positive("batch.adaptive.max-linger-ms", scheduleDelay));
+
+        Queue queue = new Queue(
+                reader.oneOf("queue.overflow-policy", "drop-oldest-non-audit", "drop-oldest-non-audit", "block", "spill"),
+                reader.nonNegative("queue.block-timeout-ms", 100L));
+
+        Spool spool = new Spool(
+                reader.bool("spool.enabled", false),
+                reader.directory("spool.directory", Path.of(System.getProperty("java.io.tmpdir"), "ldv-spool",
+                        pipeline.isEmpty() ? (table != null ? table : "default") : "pipeline-" + pipeline)),
+                reader.positive("spool.segment-size-bytes", 64 * 1024 * 1024),
+                reader.positive("spool.max-size-bytes", 1024L * 1024 * 1024),
+                reader.positive("spool.max-retry-backoff-ms", 30_000L),
+                reader.oneOf("spool.fsync", "interval", "always", "interval", "never"),
+                reader.positive("spool.fsync-interval-ms", 1_000L));
+
+        Exporter exporter = new Exporter(
+                reader.string("exporter.type", "clickhouse").trim().toLowerCase(Locale.ROOT),
+                reader.positive("exporter.max-in-flight", 4),
+                reader.directory("exporter.file.directory", Path.of(System.getProperty("java.io.tmpdir"),
+                        pipeline.isEmpty() ? "ldv-spans" : "ldv-spans-" + pipeline)),
+                reader.positive("exporter.file.max-size-bytes", 256L * 1024 * 1024),
+                reader.positive("exporter.file.rotate-interval-ms", 3_600_000L),
+                reader.positive("exporter.memory.capacity", 10_000));
+
+        Metrics metrics = new Metrics(
+                reader.string("metrics.otlp-endpoint", "").trim(),
+                reader.positive("metrics.interval-ms", 60_000L),
+                reader.bool("metrics.jmx.enabled", true));
+
+        Sampling sampling = new Sampling(
+                reader.bool("sampling.enabled", false),
+                reader.samplingPolicy("sampling.default", "keep"),
+                reader.samplingPolicies(SAMPLING_SPAN_PREFIX),
+                reader.samplingPolicies(SAMPLING_ACTIVITY_PREFIX));
+
+        return new LdvSettings(
+                pipeline,
+                reader.string("service-name", null),
+                reader.bool("enabled", true),
+                clickHouse, batch, queue, spool, exporter, metrics, sampling,
+                reader.positive("shutdown.timeout-ms", 10_000L),
+                pipelines);
+    }
+
+    private static List<String> endpoints(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(endpoint -> !endpoint.isEmpty())
+                .toList();
+    }
+
+    /**
+     * Reads optional values, falling back to the default for absent keys and failing on invalid
+     * values. The reader of a named pipeline reads the key of the pipeline if it is set, and the key
+     * of the default pipeline otherwise.
+     */
+    private static final class Reader {
+
+        private final Set<String> propertyNames;
+        private final String pipeline;
+        private final String pipelinePrefix;
+
+        Reader(Set<String> propertyNames, String pipeline) {
+            this.propertyNames = propertyNames;
+            this.pipeline = pipeline;
+            this.pipelinePrefix = pipeline.isEmpty() ? null : PIPELINE_PREFIX + pipeline + ".";
+        }
+
+        <T> T value(String key, Class<T> type, T defaultValue) throws ConfigurationException {
+            try {
+                return ConfigurationLoader.getValueByKey(name(key), type, defaultValue);
+            } catch (ConfigurationException | RuntimeException e) {
+                throw new ConfigurationException("Invalid value for " + name(key) + ": " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * @return the full name of the key to read
+         */
+        private String name(String key) {
+            return pipelinePrefix != null && propertyNames.contains(pipelinePrefix + key) ? pipelinePrefix + key : PREFIX + key;
+        }
+
+        /**
+         * @return the key without the prefix of this reader or of the default pipeline, or {@code null}
+         * for a name of another pipeline or outside {@code logboekdataverwerking.}
+         */
+        private String key(String name) {
+            if (pipelinePrefix != null && name.startsWith(pipelinePrefix)) {
+                return name.substring(pipelinePrefix.length());
+            }
+            return name.startsWith(PREFIX) && !name.startsWith(PIPELINE_PREFIX) ? name.substring(PREFIX.length()) : null;
+        }
+
+        String string(String key, String defaultValue) throws ConfigurationException {
+            return value(key, String.class, defaultValue);
+        }
+
+        /**
+         * Reads a directory that a pipeline must not share with another pipeline. A named pipeline
+         * that inherits the directory of the default pipeline uses its {@code pipeline-<name>}
+         * subdirectory, so that spool recovery and segment or file names of pipelines never mix.
+         */
+        Path directory(String key, Path defaultValue) throws ConfigurationException {
+            Path directory = Path.of(string(key, defaultValue.toString()));
+            boolean inherited = pipelinePrefix != null && propertyNames.contains(PREFIX + key)
+                    && !name(key).equals(pipelinePrefix + key);
+            return inherited ? directory.resolve("pipeline-" + pipeline) : directory;
+        }
+
+        boolean bool(String key, boolean defaultValue) throws ConfigurationException {
+            return value(key, Boolean.class, defaultValue);
+        }
+
+        int positive(String key, int defaultValue) throws ConfigurationException {
+            int value = value(key, Integer.class, defaultValue);
+            return value > 0 ? value : invalid(key, "must be positive");
+        }
+
+        long positive(String key, long defaultValue) throws ConfigurationException {
+            long value = value(key, Long.class, defaultValue);
+            return value > 0 ? value : invalid(key, "must be positive");
+        }
+
+        int nonNegative(String key, int defaultValue) throws ConfigurationException {
+            int value = value(key, Integer.class, defaultValue);
+            return value >= 0 ? value : invalid(key, "must not be negative");
+        }
+
+        long nonNegative(String key, long defaultValue) throws ConfigurationException {
+            long value = value(key, Long.class, defaultValue);
+            return value >= 0 ? value : invalid(key, "must not be negative");
+        }
+
+        String oneOf(String key, String defaultValue, String... allowed) throws ConfigurationException {
+            String value = string(key, defaultValue).trim().toLowerCase(Locale.ROOT);
+            return List.of(allowed).contains(value) ? value : invalid(key, "must be one of " + String.join(", ", allowed));
+        }
+
+        ClickHouseFormat format(String key, ClickHouseFormat defaultValue) throws ConfigurationException {
+            String value = string(key, defaultValue.name());
+            for (ClickHouseFormat format : new ClickHouseFormat[]{ClickHouseFormat.JSONEachRow, ClickHouseFormat.RowBinary}) {
+                if (format.name().equalsIgnoreCase(value.trim())) {
+                    return format;
+                }
+            }
+            return invalid(key, "must be JSONEachRow or RowBinary");
+        }
+
+        String samplingPolicy(String key, String defaultValue) throws ConfigurationException {
+            String value = string(key, defaultValue);
+            try {
+                SamplingPolicy.parse(value);
+                return value;
+            } catch (ConfigurationException e) {
+                return invalid(key, e.getMessage());
+            }
+        }
+
+        Map<String, String> samplingPolicies(String prefix) throws ConfigurationException {
+            Map<String, String> policies = new HashMap<>();
+            for (String name : propertyNames) {
+                String key = key(name);
+                if (key != null && key.startsWith(prefix)) {
+                    String policy = samplingPolicy(key, null);
+                    if (policy != null) {
+                        policies.put(key.substring(prefix.length()), policy);
+                    }
+                }
+            }
+            return Map.copyOf(policies);
+        }
+
+        /**
+         * Logs the keys under {@code logboekdataverwerking.} that are not known, including those of
+         * named pipelines.
+         */
+        void warnAboutUnknownKeys() {
+            for (String name : propertyNames) {
+                if (!name.startsWith(PREFIX)) {
+                    continue;
+                }
+                String key = name.substring(PREFIX.length());
+                if (name.startsWith(PIPELINE_PREFIX)) {
+                    int end = name.indexOf('.', PIPELINE_PREFIX.length());
+                    key = end > PIPELINE_PREFIX.length() ? name.substring(end + 1) : "";
+                }
+                if (!KEYS.contains(key) && !key.startsWith(SAMPLING_SPAN_PREFIX) && !key.startsWith(SAMPLING_ACTIVITY_PREFIX)) {
+                    LOGGER.log(Level.WARNING, "Ignoring unknown configuration key {0}", name);
+                }
+            }
+        }
+
+        private <T> T invalid(String key, String reason) throws ConfigurationException {
+            throw new ConfigurationException("Invalid value for " + name(key) + ": " + reason);
+        }
+    }
+}
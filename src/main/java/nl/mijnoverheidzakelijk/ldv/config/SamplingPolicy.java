@@ -0,0 +1,119 @@
+package nl.mijnoverheidzakelijk.ldv.config;
+
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a technical span, one without a processing activity, is exported.
+ * <p>
+ * Policies are configured as text, case-insensitively:
+ * <ul>
+ *     <li>{@code keep}: export every span</li>
+ *     <li>{@code drop}: export no spans</li>
+ *     <li>{@code ratio:<fraction>}: export a fraction of the traces, e.g. {@code ratio:0.1}; the
+ *     decision is derived from the trace id, so a trace is kept or dropped as a whole</li>
+ *     <li>{@code rate:<spans per second>}: export at most this many spans per second; the rate must
+ *     be positive, use {@code drop} to export none</li>
+ * </ul>
+ */
+@FunctionalInterface
+public interface SamplingPolicy {
+
+    /**
+     * Exports every span.
+     */
+    SamplingPolicy KEEP = span -> true;
+
+    /**
+     * Exports no spans.
+     */
+    SamplingPolicy DROP = span -> false;
+
+    /**
+     * @param span an ended span
+     * @return whether the span is exported
+     */
+    boolean sample(ReadableSpan span);
+
+    /**
+     * Parses a policy.
+     *
+     * @param value the textual policy, see {@link SamplingPolicy}
+     * @return the policy
+     * @throws ConfigurationException if the value is not a valid policy
+     */
+    static SamplingPolicy parse(String value) throws ConfigurationException {
+        String policy = value.trim().toLowerCase(Locale.ROOT);
+        try {
+            if (policy.equals("keep")) {
+                return KEEP;
+            }
+            if (policy.equals("drop")) {
+                return DROP;
+            }
+            if (policy.startsWith("ratio:")) {
+                return ratio(Double.parseDouble(policy.substring("ratio:".length())));
+            }
+            if (policy.startsWith("rate:")) {
+                double spansPerSecond = Double.parseDouble(policy.substring("rate:".length()));
+                if (!(spansPerSecond > 0) || Double.isInfinite(spansPerSecond)) {
+                    throw new ConfigurationException("Invalid sampling policy, the rate must be positive: " + value);
+                }
+                return new RateLimited(spansPerSecond);
+            }
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Invalid sampling policy: " + value, e);
+        }
+        throw new ConfigurationException("Invalid sampling policy: " + value);
+    }
+
+    /**
+     * @param ratio fraction of traces to keep, between {@code 0} and {@code 1}
+     * @return a policy keeping that fraction of traces
+     */
+    static SamplingPolicy ratio(double ratio) {
+        if (ratio >= 1) {
+            return KEEP;
+        }
+        if (ratio <= 0) {
+            return DROP;
+        }
+        long threshold = (long) (ratio * Long.MAX_VALUE);
+        return span -> {
+            String traceId = span.getSpanContext().getTraceId();
+            return (Long.parseUnsignedLong(traceId, 16, 32, 16) & Long.MAX_VALUE) < threshold;
+        };
+    }
+
+    /**
+     * Token bucket allowing a fixed number of spans per second, with bursts of up to one second.
+     */
+    final class RateLimited implements SamplingPolicy {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        RateLimited(double spansPerSecond) {
+            this.tokensPerNano = spansPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, spansPerSecond);
+            this.tokens = capacity;
+        }
+
+        @Override
+        public synchronized boolean sample(ReadableSpan span) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+    }
+}
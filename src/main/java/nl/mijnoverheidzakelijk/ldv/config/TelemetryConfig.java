@@ -3,57 +3,237 @@ package nl.mijnoverheidzakelijk.ldv.config;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.exporter.otlp.http.metrics.OtlpHttpMetricExporter;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.OpenTelemetrySdkBuilder;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.SdkMeterProviderBuilder;
+import io.opentelemetry.sdk.metrics.export.PeriodicMetricReader;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
-import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import nl.mijnoverheidzakelijk.ldv.exporter.AdaptiveBatchingSpanExporter;
 import nl.mijnoverheidzakelijk.ldv.exporter.ClickHouseSpanExporter;
+import nl.mijnoverheidzakelijk.ldv.exporter.RingBufferSpanProcessor;
+import nl.mijnoverheidzakelijk.ldv.exporter.SpanExporters;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * Configures and provides a singleton {@link OpenTelemetry} instance for the application.
  * <p>
  * The configuration sets the service.name resource attribute and registers a
- * {@link BatchSpanProcessor} that exports spans to ClickHouse via
- * {@link ClickHouseSpanExporter}.
+ * {@link RingBufferSpanProcessor} that exports spans to ClickHouse via
+ * {@link ClickHouseSpanExporter}, or to another backend selected with
+ * {@code logboekdataverwerking.exporter.type}, see {@link SpanExporters}.
+ * <p>
+ * The processor is tuned with the {@code logboekdataverwerking.batch.*} and
+ * {@code logboekdataverwerking.queue.*} keys. With
+ * {@code logboekdataverwerking.batch.adaptive.enabled} the exporter is wrapped in an
+ * {@link AdaptiveBatchingSpanExporter}. Spans dropped because the queue was full are reported
+ * by a {@link DroppedSpanReporter}.
+ * <p>
+ * The export pipeline reports its own metrics through {@link LdvMetrics}. These are registered
+ * as a JMX MXBean unless {@code logboekdataverwerking.metrics.jmx.enabled} is {@code false}, and
+ * are pushed over OTLP/HTTP together with the span processor metrics when
+ * {@code logboekdataverwerking.metrics.otlp-endpoint} is set.
+ * <p>
+ * With {@code logboekdataverwerking.sampling.enabled}, spans pass through an
+ * {@link AuditAwareSpanProcessor} that always keeps processing records and samples technical spans
+ * according to {@code logboekdataverwerking.sampling.default},
+ * {@code logboekdataverwerking.sampling.span.<span name>} and
+ * {@code logboekdataverwerking.sampling.activity.<processing activity id>}.
+ * <p>
+ * A shutdown hook flushes the queued spans and closes the exporter, waiting at most
+ * {@code logboekdataverwerking.shutdown.timeout-ms}. Keep this below the termination grace period
+ * of the platform.
+ * <p>
+ * Besides the default pipeline, named pipelines configured under
+ * {@code logboekdataverwerking.pipeline.<name>.*} are created by {@link #initPipeline(String)}. Each
+ * pipeline has its own service name, exporter, ClickHouse clients, queue, processor thread and
+ * metrics, so a service that floods its queue does not delay or drop the spans of another. Only the
+ * default pipeline is registered as the global {@link OpenTelemetry}.
  */
 public final class TelemetryConfig {
-    private static OpenTelemetry instance;
-    private static boolean initialized = false;
+    private static final Logger LOGGER = Logger.getLogger(TelemetryConfig.class.getName());
+    private static final Map<String, Pipeline> pipelines = new ConcurrentHashMap<>();
     
     private TelemetryConfig() {
     }
 
     /**
      * Initializes and returns the global {@link OpenTelemetry} instance.
-     * Subsequent calls return the already initialized instance.
+     * Subsequent calls return the already initialized instance without locking.
      *
      * @param serviceName the service name to be set on spans as a resource attribute
      * @return the initialized {@link OpenTelemetry} instance
      * @throws ConfigurationException if exporter configuration cannot be read
      */
-    public static synchronized OpenTelemetry initOpenTelemetry(String serviceName) throws ConfigurationException {
-        if (initialized) {
-            return instance;
+    public static OpenTelemetry initOpenTelemetry(String serviceName) throws ConfigurationException {
+        Pipeline pipeline = pipelines.get("");
+        return pipeline != null ? pipeline.openTelemetry() : initialize("", serviceName).openTelemetry();
+    }
+
+    /**
+     * Initializes and returns the {@link OpenTelemetry} instance of a pipeline, using the service
+     * name configured for it. Subsequent calls return the already initialized instance without locking.
+     *
+     * @param name the pipeline name, empty for the default pipeline
+     * @return the initialized {@link OpenTelemetry} instance of the pipeline
+     * @throws ConfigurationException if the pipeline is not configured or its configuration cannot be read
+     */
+    public static OpenTelemetry initPipeline(String name) throws ConfigurationException {
+        Pipeline pipeline = pipelines.get(name);
+        if (pipeline != null) {
+            return pipeline.openTelemetry();
+        }
+        String serviceName = LdvSettings.require(LdvSettings.current().pipeline(name).serviceName(), "service-name");
+        return name.isEmpty() ? initOpenTelemetry(serviceName) : initialize(name, serviceName).openTelemetry();
+    }
+
+    private static synchronized Pipeline initialize(String name, String serviceName) throws ConfigurationException {
+        Pipeline existing = pipelines.get(name);
+        if (existing != null) {
+            return existing;
         }
+        LdvSettings settings = LdvSettings.current().pipeline(name);
+        DroppedSpanReporter droppedSpanReporter = new DroppedSpanReporter();
 
         Resource resource = Resource.getDefault().merge(Resource.create(Attributes.of(
                 AttributeKey.stringKey("service.name"), serviceName
         )));
 
-        ClickHouseSpanExporter exporter = new ClickHouseSpanExporter();
+        Duration metricsInterval = Duration.ofMillis(settings.metrics().intervalMillis());
+        SdkMeterProviderBuilder meterProviderBuilder = SdkMeterProvider.builder()
+                .setResource(resource)
+                .registerMetricReader(PeriodicMetricReader.builder(droppedSpanReporter)
+                        .setInterval(metricsInterval)
+                        .build());
+        if (!settings.metrics().otlpEndpoint().isEmpty()) {
+            meterProviderBuilder.registerMetricReader(PeriodicMetricReader.builder(OtlpHttpMetricExporter.builder()
+                            .setEndpoint(settings.metrics().otlpEndpoint())
+                            .build())
+                    .setInterval(metricsInterval)
+                    .build());
+        }
+        SdkMeterProvider meterProvider = meterProviderBuilder.build();
+
+        LdvMetrics metrics = new LdvMetrics(meterProvider.get(LdvMetrics.class.getPackageName()));
+        metrics.setQueueDroppedSpans(droppedSpanReporter::getDroppedSpans);
+        if (settings.metrics().jmxEnabled()) {
+            metrics.registerMBean(name.isEmpty() ? serviceName : serviceName + "/" + name);
+        }
+
+        SpanExporter backend = SpanExporters.create(settings, metrics);
+        SpanExporter exporter = backend;
+        if (settings.batch().adaptive()) {
+            exporter = new AdaptiveBatchingSpanExporter(exporter, settings.batch().maxExportBatchSize(),
+                    settings.batch().adaptiveMaxBatchSize(), settings.batch().adaptiveMaxLingerMillis());
+        }
+
+        SpanProcessor spanProcessor = new RingBufferSpanProcessor(settings, exporter,
+                settings.queue().spill() && backend instanceof ClickHouseSpanExporter clickHouse ? clickHouse::spill : null,
+                meterProvider.get(RingBufferSpanProcessor.class.getName()),
+                metrics);
+
+        SpanProcessor processor = spanProcessor;
+        if (settings.sampling().enabled()) {
+            processor = new AuditAwareSpanProcessor(spanProcessor,
+                    SamplingPolicy.parse(settings.sampling().defaultPolicy()),
+                    samplingPolicies(settings.sampling().spanPolicies()),
+                    samplingPolicies(settings.sampling().activityPolicies()),
+                    metrics);
+        }
+
         SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
                 .setResource(resource)
-                .addSpanProcessor(BatchSpanProcessor.builder(exporter).build())
+                .addSpanProcessor(processor)
                 .build();
 
-        OpenTelemetrySdk openTelemetrySdk = OpenTelemetrySdk.builder()
+        OpenTelemetrySdkBuilder sdkBuilder = OpenTelemetrySdk.builder()
                 .setTracerProvider(tracerProvider)
-                .buildAndRegisterGlobal();
-        Runtime.getRuntime().addShutdownHook(new Thread(openTelemetrySdk::close));
-        
-        instance = openTelemetrySdk;
-        initialized = true;
-        return openTelemetrySdk;
+                .setMeterProvider(meterProvider);
+        OpenTelemetrySdk openTelemetrySdk = name.isEmpty() ? sdkBuilder.buildAndRegisterGlobal() : sdkBuilder.build();
+        long shutdownTimeout = settings.shutdownTimeoutMillis();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            CompletableResultCode result = openTelemetrySdk.shutdown().join(shutdownTimeout, TimeUnit.MILLISECONDS);
+            if (!result.isDone()) {
+                LOGGER.log(Level.WARNING, "OpenTelemetry did not shut down within {0} ms, spans may be lost", shutdownTimeout);
+            }
+        }, name.isEmpty() ? "ldv-shutdown" : "ldv-shutdown-" + name));
+
+        Pipeline pipeline = new Pipeline(openTelemetrySdk, backend, droppedSpanReporter);
+        pipelines.put(name, pipeline);
+        return pipeline;
+    }
+
+    private static Map<String, SamplingPolicy> samplingPolicies(Map<String, String> configured) throws ConfigurationException {
+        Map<String, SamplingPolicy> policies = new HashMap<>();
+        for (Map.Entry<String, String> entry : configured.entrySet()) {
+            policies.put(entry.getKey(), SamplingPolicy.parse(entry.getValue()));
+        }
+        return policies;
+    }
+
+    /**
+     * Returns the export backend created by {@link #initOpenTelemetry(String)}, for example to read
+     * the spans of an {@link nl.mijnoverheidzakelijk.ldv.exporter.InMemorySpanExporter} in tests.
+     *
+     * @return the backend, or {@code null} before initialization
+     */
+    public static SpanExporter getSpanExporter() {
+        return getSpanExporter("");
+    }
+
+    /**
+     * Returns the export backend of a pipeline.
+     *
+     * @param name the pipeline name, empty for the default pipeline
+     * @return the backend, or {@code null} before the pipeline is initialized
+     */
+    public static SpanExporter getSpanExporter(String name) {
+        Pipeline pipeline = pipelines.get(name);
+        return pipeline != null ? pipeline.spanExporter() : null;
+    }
+
+    /**
+     * Returns the number of spans dropped by the span processors of all pipelines because their queue was full.
+     * The count is updated every {@code logboekdataverwerking.metrics.interval-ms}, once per minute by default.
+     *
+     * @return the total number of dropped spans since startup
+     */
+    public static long getDroppedSpanCount() {
+        long dropped = 0;
+        for (Pipeline pipeline : pipelines.values()) {
+            dropped += pipeline.droppedSpanReporter().getDroppedSpans();
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the number of spans dropped by the span processor of a pipeline because its queue was full.
+     *
+     * @param name the pipeline name, empty for the default pipeline
+     * @return the number of dropped spans since startup, {@code 0} before the pipeline is initialized
+     */
+    public static long getDroppedSpanCount(String name) {
+        Pipeline pipeline = pipelines.get(name);
+        return pipeline != null ? pipeline.droppedSpanReporter().getDroppedSpans() : 0;
+    }
+
+    /**
+     * The components of an initialized pipeline.
+     */
+    private record Pipeline(OpenTelemetry openTelemetry, SpanExporter spanExporter, DroppedSpanReporter droppedSpanReporter) {
     }
 }
\ No newline at end of file
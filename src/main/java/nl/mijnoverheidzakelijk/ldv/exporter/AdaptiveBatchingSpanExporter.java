@@ -0,0 +1,181 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SpanExporter} decorator that merges consecutive batches while the span processor is
+ * under load, so ClickHouse receives fewer, larger inserts.
+ * <p>
+ * A batch of the processor's maximum size means its queue still holds spans. Such batches are
+ * held back and merged, and the merge target doubles with every full batch up to
+ * {@code maxBatchSize}. A smaller batch signals that the backlog is gone: everything held back
+ * is exported together with it and the target falls back to the processor's batch size.
+ * Held back spans are never kept longer than {@code maxLingerMillis}.
+ * <p>
+ * The result of a held back batch completes with the result of the merged export it ends up in.
+ * The held back spans are taken out under the monitor of this exporter, but the delegate is called
+ * after releasing it, so a delegate that blocks on back pressure does not hold up the linger timer,
+ * {@link #flush()} or {@link #shutdown()}.
+ */
+public class AdaptiveBatchingSpanExporter implements SpanExporter {
+
+    private final SpanExporter delegate;
+    private final int baseBatchSize;
+    private final int maxBatchSize;
+    private final long maxLingerMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final List<SpanData> pending = new ArrayList<>();
+    private final List<CompletableResultCode> pendingResults = new ArrayList<>();
+    private int targetBatchSize;
+    private long pendingSince;
+
+    /**
+     * @param delegate        the exporter receiving the merged batches
+     * @param baseBatchSize   the maximum export batch size of the span processor
+     * @param maxBatchSize    upper bound for a merged batch
+     * @param maxLingerMillis maximum time spans are held back before they are exported
+     */
+    public AdaptiveBatchingSpanExporter(SpanExporter delegate, int baseBatchSize, int maxBatchSize, long maxLingerMillis) {
+        this.delegate = delegate;
+        this.baseBatchSize = baseBatchSize;
+        this.maxBatchSize = Math.max(baseBatchSize, maxBatchSize);
+        this.maxLingerMillis = maxLingerMillis;
+        this.targetBatchSize = baseBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ldv-adaptive-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::exportIfLingering, maxLingerMillis, maxLingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Holds back full batches until the merge target is reached and exports everything held back
+     * as soon as a partial batch arrives.
+     *
+     * @param spans the spans to export
+     * @return the result of the merged export, also when the batch was held back
+     */
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        Held held;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+            }
+            pending.addAll(spans);
+
+            if (spans.size() >= baseBatchSize) {
+                if (pending.size() < targetBatchSize) {
+                    CompletableResultCode result = new CompletableResultCode();
+                    pendingResults.add(result);
+                    return result;
+                }
+                targetBatchSize = Math.min(targetBatchSize * 2, maxBatchSize);
+            } else {
+                targetBatchSize = baseBatchSize;
+            }
+            held = takePending();
+        }
+        return export(held);
+    }
+
+    /**
+     * Exports held back spans and flushes the delegate.
+     *
+     * @return the result of the delegate flush
+     */
+    @Override
+    public CompletableResultCode flush() {
+        Held held;
+        synchronized (this) {
+            held = takePending();
+        }
+        CompletableResultCode exported = export(held);
+        CompletableResultCode flushed = delegate.flush();
+        return CompletableResultCode.ofAll(List.of(exported, flushed));
+    }
+
+    /**
+     * Exports held back spans and shuts down the delegate.
+     *
+     * @return the result of the delegate shutdown
+     */
+    @Override
+    public CompletableResultCode shutdown() {
+        scheduler.shutdownNow();
+        Held held;
+        synchronized (this) {
+            held = takePending();
+        }
+        export(held);
+        return delegate.shutdown();
+    }
+
+    private void exportIfLingering() {
+        Held held = null;
+        synchronized (this) {
+            if (!pending.isEmpty() && System.currentTimeMillis() - pendingSince >= maxLingerMillis) {
+                targetBatchSize = baseBatchSize;
+                held = takePending();
+            }
+        }
+        export(held);
+    }
+
+    /**
+     * Removes the held back spans and the results of their batches. Must be called while holding
+     * the monitor of this exporter.
+     *
+     * @return the held back spans, or {@code null} if there are none
+     */
+    private Held takePending() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        Held held = new Held(new ArrayList<>(pending), new ArrayList<>(pendingResults));
+        pending.clear();
+        pendingResults.clear();
+        return held;
+    }
+
+    /**
+     * Exports taken spans and completes the results of the held back batches with the result of
+     * that export.
+     */
+    private CompletableResultCode export(Held held) {
+        if (held == null) {
+            return CompletableResultCode.ofSuccess();
+        }
+        CompletableResultCode exported;
+        try {
+            exported = delegate.export(held.spans());
+        } catch (RuntimeException e) {
+            held.results().forEach(CompletableResultCode::fail);
+            throw e;
+        }
+        exported.whenComplete(() -> {
+            for (CompletableResultCode result : held.results()) {
+                if (exported.isSuccess()) {
+                    result.succeed();
+                } else {
+                    result.fail();
+                }
+            }
+        });
+        return exported;
+    }
+
+    private record Held(List<SpanData> spans, List<CompletableResultCode> results) {
+    }
+}
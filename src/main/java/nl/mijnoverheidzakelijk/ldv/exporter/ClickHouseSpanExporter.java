@@ -1,59 +1,143 @@
 package nl.mijnoverheidzakelijk.ldv.exporter;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.opentelemetry.sdk.common.CompletableResultCode;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
-import nl.mijnoverheidzakelijk.ldv.config.ConfigurationLoader;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
 import nl.mijnoverheidzakelijk.ldv.repository.ClickHouseRepository;
+import nl.mijnoverheidzakelijk.ldv.spool.SpanSpool;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * OpenTelemetry {@link SpanExporter} that converts spans to JSON and writes them
+ * OpenTelemetry {@link SpanExporter} that streams spans as JSON or RowBinary and writes them
  * to a ClickHouse table.
  * <p>
  * The exporter is enabled based on the configuration key
  * {@code logboekdataverwerking.enabled}. When enabled, it ensures the ClickHouse schema
  * exists and inserts exported spans into the configured table.
+ * <p>
+ * When {@code logboekdataverwerking.spool.enabled} is set, batches are appended to a
+ * durable on-disk {@link SpanSpool} instead and shipped to ClickHouse in the background,
+ * so a slow or unavailable database neither blocks the span processor nor loses records.
+ * The spool is also opened when the span processor spills overflowing spans to it, see
+ * {@link #spill(Collection)}.
+ * <p>
+ * With {@code logboekdataverwerking.clickhouse.resource-table} enabled, the resource of the spans is
+ * registered once in the resources table and rows only carry its id.
+ * <p>
+ * Insert latency, payload sizes, serialization time, in-flight inserts, failures and drops are
+ * recorded on the given {@link LdvMetrics}.
+ * <p>
+ * {@link #flush()} waits for the inserts in flight and {@link #shutdown()} additionally closes the
+ * spool and the ClickHouse clients, waiting at most {@code logboekdataverwerking.shutdown.timeout-ms}.
  */
 public class ClickHouseSpanExporter implements SpanExporter {
 
     private static final Logger LOGGER = Logger.getLogger(ClickHouseSpanExporter.class.getName());
 
     private final ClickHouseRepository repository;
-    private final ObjectMapper objectMapper;
+    private final SpanPayloadWriter spanWriter;
+    private final SpanPayloadWriter spillWriter;
+    private final ResourceRegistry resourceRegistry;
     private final String tableName;
     private final boolean enabled;
+    private final SpanSpool spool;
+    private final boolean spoolBatches;
+    private final Semaphore inFlight;
+    private final long insertTimeoutMillis;
+    private final long shutdownTimeoutMillis;
+    private final LdvMetrics metrics;
+    private final Set<CompletableResultCode> pendingInserts = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
-     * Creates a new exporter instance using configuration values provided via
-     * {@link ConfigurationLoader}.
+     * Creates a new exporter instance using the current {@link LdvSettings}, without an
+     * OpenTelemetry metrics backend.
      *
      * @throws ConfigurationException if configuration cannot be read
      */
     public ClickHouseSpanExporter() throws ConfigurationException {
-        this.enabled = ConfigurationLoader.getValueByKey("logboekdataverwerking.enabled", Boolean.class);
+        this(LdvMetrics.noop());
+    }
+
+    /**
+     * Creates a new exporter instance using the current {@link LdvSettings}.
+     *
+     * @param metrics the metrics to record the export pipeline on
+     * @throws ConfigurationException if configuration cannot be read
+     */
+    public ClickHouseSpanExporter(LdvMetrics metrics) throws ConfigurationException {
+        this(metrics, false);
+    }
+
+    /**
+     * Creates a new exporter instance using the current {@link LdvSettings}.
+     *
+     * @param metrics the metrics to record the export pipeline on
+     * @param spill   whether to open the spool for {@link #spill(Collection)} even if
+     *                {@code logboekdataverwerking.spool.enabled} is not set
+     * @throws ConfigurationException if configuration cannot be read
+     */
+    public ClickHouseSpanExporter(LdvMetrics metrics, boolean spill) throws ConfigurationException {
+        this(LdvSettings.current(), metrics, spill);
+    }
+
+    /**
+     * Creates a new exporter instance using the given settings.
+     *
+     * @param settings the settings
+     * @param metrics  the metrics to record the export pipeline on
+     * @param spill    whether to open the spool for {@link #spill(Collection)} even if
+     *                 {@code logboekdataverwerking.spool.enabled} is not set
+     * @throws ConfigurationException if a required setting is missing or the spool cannot be opened
+     */
+    public ClickHouseSpanExporter(LdvSettings settings, LdvMetrics metrics, boolean spill) throws ConfigurationException {
+        this.metrics = metrics;
+        this.spoolBatches = settings.spool().enabled();
+        this.enabled = settings.enabled();
         if (enabled) {
-            this.repository = new ClickHouseRepository();
-            this.tableName = ConfigurationLoader.getValueByKey("logboekdataverwerking.clickhouse.table", String.class);
+            this.repository = new ClickHouseRepository(settings.clickHouse());
+            this.tableName = settings.clickHouse().table();
             this.repository.ensureSchema();
+            this.resourceRegistry = repository.getResourceTable() == null ? null
+                    : new ResourceRegistry(repository, repository.getResourceTable());
+            this.spanWriter = SpanPayloadWriter.forFormat(repository.getInsertFormat(), resourceRegistry);
+            this.spool = spoolBatches || spill ? createSpool(settings.spool(), repository, tableName, metrics) : null;
+            this.spillWriter = spill ? SpanPayloadWriter.forFormat(repository.getInsertFormat(), resourceRegistry) : null;
         } else {
             this.repository = null;
             this.tableName = null;
+            this.spanWriter = null;
+            this.spillWriter = null;
+            this.resourceRegistry = null;
+            this.spool = null;
         }
-        this.objectMapper = new ObjectMapper();
+        this.inFlight = new Semaphore(settings.exporter().maxInFlight());
+        this.insertTimeoutMillis = settings.clickHouse().insertTimeoutMillis();
+        this.shutdownTimeoutMillis = settings.shutdownTimeoutMillis();
     }
 
 
     /**
-     * Exports a collection of spans to ClickHouse. Spans are serialized to JSON.
+     * Exports a collection of spans to ClickHouse. Spans are streamed in the configured
+     * insert format into a pooled buffer which is handed to the client without further copying.
+     * <p>
+     * The insert runs asynchronously; up to {@code logboekdataverwerking.exporter.max-in-flight}
+     * inserts may be outstanding at once and the returned result completes when this batch's
+     * insert finishes. When all slots are taken the caller waits for one to become free.
      *
      * @param spans the spans to export
      * @return success or failure result code
@@ -61,82 +145,206 @@ public class ClickHouseSpanExporter implements SpanExporter {
     @Override
     public CompletableResultCode export(Collection<SpanData> spans) {
 
-        if (!enabled) {
+        if (!enabled || spans.isEmpty()) {
             return CompletableResultCode.ofSuccess();
         }
+        if (closed.get()) {
+            LOGGER.log(Level.WARNING, "Exporter is shut down, dropping span batch");
+            metrics.recordDropped(spans.size(), "shutdown");
+            return CompletableResultCode.ofFailure();
+        }
 
-        StringBuilder payload = new StringBuilder();
+        if (resourceRegistry != null) {
+            resourceRegistry.registerAll(spans);
+        }
 
-        for (SpanData span : spans) {
-            Map<String, Object> spanMap = mapSpanToJson(span);
+        PayloadBuffer payload = PayloadBuffer.acquire();
+        long start = System.nanoTime();
+        try {
+            spanWriter.write(spans, payload);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize span data", e);
+            payload.release();
+            metrics.recordDropped(spans.size(), "serialization");
+            return CompletableResultCode.ofFailure();
+        }
+        metrics.recordSerialization(System.nanoTime() - start);
 
+        if (spoolBatches) {
             try {
-                payload.append(objectMapper.writeValueAsString(spanMap)).append("\n");
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Failed to serialize span data", e);
-                return CompletableResultCode.ofFailure();
+                return appendToSpool(payload, spans.size());
+            } finally {
+                payload.release();
             }
         }
+        return insertAsync(payload, spans.size());
+    }
 
-        if (!payload.isEmpty()) {
-            try {
-                repository.insertJsonEachRow(tableName, payload.toString());
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Failed to insert spans into ClickHouse", e);
+    /**
+     * Writes spans directly to the spool, bypassing the in-flight inserts. The span processor uses
+     * this for spans its queue has no room for. Safe to call concurrently with {@link #export}.
+     *
+     * @param spans the spans to spill
+     * @return {@code false} if the spans could not be stored
+     */
+    public boolean spill(Collection<SpanData> spans) {
+        if (!enabled || spans.isEmpty()) {
+            return true;
+        }
+        if (spillWriter == null) {
+            return false;
+        }
+        if (resourceRegistry != null) {
+            resourceRegistry.registerAll(spans);
+        }
+        PayloadBuffer payload = PayloadBuffer.acquire();
+        try {
+            synchronized (spillWriter) {
+                spillWriter.write(spans, payload);
+            }
+            return appendToSpool(payload, spans.size()).isSuccess();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize span data", e);
+            metrics.recordDropped(spans.size(), "serialization");
+            return false;
+        } finally {
+            payload.release();
+        }
+    }
+
+    /**
+     * Starts the insert of an encoded batch once one of the in-flight slots is free. The returned
+     * result completes when the insert finishes or times out. The slot and the payload buffer are
+     * only given back once the request stopped reading the buffer, which after a timeout is later.
+     */
+    private CompletableResultCode insertAsync(PayloadBuffer payload, int rows) {
+        try {
+            if (!inFlight.tryAcquire(insertTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.log(Level.SEVERE, "Timed out waiting for an in-flight insert slot, dropping span batch");
+                payload.release();
+                metrics.recordDropped(rows, "in_flight_timeout");
                 return CompletableResultCode.ofFailure();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            payload.release();
+            metrics.recordDropped(rows, "interrupted");
+            return CompletableResultCode.ofFailure();
         }
 
-        return CompletableResultCode.ofSuccess();
+        CompletableResultCode result = new CompletableResultCode();
+        pendingInserts.add(result);
+        int bytes = payload.size();
+        long start = System.nanoTime();
+        metrics.insertStarted();
+        ClickHouseRepository.PendingInsert insert = repository.startInsert(tableName, payload.toByteBuffer(), spanWriter.format());
+        insert.finished().whenComplete((ignored, error) -> {
+            inFlight.release();
+            payload.release();
+            metrics.insertFinished();
+        });
+        insert.result()
+                .whenComplete((ignored, error) -> {
+                    metrics.recordInsert(rows, bytes, System.nanoTime() - start, error == null);
+                    pendingInserts.remove(result);
+                    if (error != null) {
+                        LOGGER.log(Level.SEVERE, "Failed to insert spans into ClickHouse", error);
+                        metrics.recordDropped(rows, "insert_failed");
+                        result.failExceptionally(error);
+                    } else {
+                        result.succeed();
+                    }
+                });
+        return result;
+    }
+
+    private CompletableResultCode appendToSpool(PayloadBuffer payload, int rows) {
+        try {
+            if (spool.append(spanWriter.format(), payload.array(), 0, payload.size())) {
+                return CompletableResultCode.ofSuccess();
+            }
+            LOGGER.log(Level.SEVERE, "Spool is full or closed, dropping span batch");
+            metrics.recordDropped(rows, "spool_full");
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to append spans to spool", e);
+            metrics.recordDropped(rows, "spool_error");
+        }
+        return CompletableResultCode.ofFailure();
     }
 
     /**
-     * Maps {@link SpanData} to a JSON-compatible map structure.
-     *
-     * @param span the span to map
-     * @return a map representing the span suitable for JSON serialization
+     * Opens the spool. Shipped batches are recorded as inserts with an unknown
+     * row count, since the drainer only sees the encoded payload. Batches the server cannot parse
+     * are rejected, so the spool quarantines them instead of retrying.
      */
-    private Map<String, Object> mapSpanToJson(SpanData span) {
-        Map<String, Object> jsonMap = new HashMap<>();
-
-        jsonMap.put("traceId", span.getTraceId());
-        jsonMap.put("spanId", span.getSpanId());
-        jsonMap.put("status", span.getStatus().getStatusCode().name());
-        jsonMap.put("name", span.getName());
-        jsonMap.put("startTime", TimeUnit.NANOSECONDS.toMillis(span.getStartEpochNanos()));
-        jsonMap.put("endTime", TimeUnit.NANOSECONDS.toMillis(span.getEndEpochNanos()));
-        jsonMap.put("parentSpanId", span.getParentSpanId());
-
-        Map<String, String> attributes = new HashMap<>();
-        span.getAttributes().forEach((key, value) ->
-                attributes.put(key.getKey(), String.valueOf(value)));
-        jsonMap.put("attributes", attributes);
-
-        Map<String, String> resource = new HashMap<>();
-        span.getResource().getAttributes().forEach((key, value) ->
-                resource.put(key.getKey(), String.valueOf(value)));
-        jsonMap.put("resource", resource);
-
-        return jsonMap;
+    private static SpanSpool createSpool(LdvSettings.Spool settings, ClickHouseRepository repository, String tableName,
+                                         LdvMetrics metrics) throws ConfigurationException {
+        Path directory = settings.directory();
+        try {
+            SpanSpool spool = new SpanSpool(directory, settings.segmentSizeBytes(), settings.maxSizeBytes(),
+                    settings.maxRetryBackoffMillis(), SpanSpool.FsyncPolicy.parse(settings.fsync()), settings.fsyncIntervalMillis(),
+                    (format, layout, data) -> {
+                        int bytes = data.remaining();
+                        long start = System.nanoTime();
+                        metrics.insertStarted();
+                        boolean success = false;
+                        try {
+                            repository.insert(tableName, data, format, layout);
+                            success = true;
+                        } catch (RuntimeException e) {
+                            if (ClickHouseRepository.isMalformedPayload(e)) {
+                                throw new SpanSpool.RejectedBatchException("ClickHouse cannot parse the spooled batch", e);
+                            }
+                            throw e;
+                        } finally {
+                            metrics.insertFinished();
+                            metrics.recordInsert(-1, bytes, System.nanoTime() - start, success);
+                        }
+                    });
+            metrics.setSpoolSize(spool::size);
+            return spool;
+        } catch (IOException e) {
+            throw new ConfigurationException("Failed to open spool directory " + directory, e);
+        }
     }
 
-    @Override
     /**
-     * No-op flush for this exporter. Returns success.
+     * Waits for the inserts that are in flight. Each insert is bounded by
+     * {@code logboekdataverwerking.clickhouse.insert-timeout-ms}. Batches in the spool are durable
+     * and are not waited for.
      *
-     * @return success result code
+     * @return a result completing when all inserts in flight at the time of the call finished,
+     * failed if any of them failed
      */
+    @Override
     public CompletableResultCode flush() {
-        return CompletableResultCode.ofSuccess();
+        return CompletableResultCode.ofAll(List.copyOf(pendingInserts));
     }
 
-    @Override
     /**
-     * Shuts down the exporter. No resources to free, returns success.
+     * Shuts down the exporter. Further exports are rejected, inserts in flight are given up to
+     * {@code logboekdataverwerking.shutdown.timeout-ms} to finish, after which the spool drainer is
+     * stopped and the ClickHouse clients are closed. Unsent spool batches remain on disk and are
+     * shipped after the next start.
      *
-     * @return success result code
+     * @return success, or failure if inserts were still in flight or failed
      */
+    @Override
     public CompletableResultCode shutdown() {
-        return CompletableResultCode.ofSuccess();
+        if (!closed.compareAndSet(false, true)) {
+            return CompletableResultCode.ofSuccess();
+        }
+        CompletableResultCode inserts = flush().join(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (!inserts.isDone()) {
+            LOGGER.log(Level.WARNING, "{0} inserts still in flight after {1} ms, closing ClickHouse clients",
+                    new Object[]{pendingInserts.size(), shutdownTimeoutMillis});
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        if (repository != null) {
+            repository.close();
+        }
+        return inserts.isSuccess() ? CompletableResultCode.ofSuccess() : CompletableResultCode.ofFailure();
     }
 }
@@ -0,0 +1,80 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link SpanExporter} that keeps the most recently exported spans in memory, for tests and for
+ * measuring the capture path without a database.
+ * <p>
+ * At most {@code capacity} spans are retained; older spans are discarded as new ones arrive.
+ */
+public final class InMemorySpanExporter implements SpanExporter {
+
+    private final int capacity;
+    private final ArrayDeque<SpanData> spans;
+    private long exportedSpans;
+    private boolean stopped;
+
+    /**
+     * @param capacity the maximum number of spans to retain
+     */
+    public InMemorySpanExporter(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.spans = new ArrayDeque<>(Math.min(this.capacity, 1024));
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> batch) {
+        if (stopped) {
+            return CompletableResultCode.ofFailure();
+        }
+        for (SpanData span : batch) {
+            if (spans.size() == capacity) {
+                spans.pollFirst();
+            }
+            spans.addLast(span);
+        }
+        exportedSpans += batch.size();
+        return CompletableResultCode.ofSuccess();
+    }
+
+    /**
+     * @return the retained spans, oldest first
+     */
+    public synchronized List<SpanData> getFinishedSpans() {
+        return List.copyOf(spans);
+    }
+
+    /**
+     * @return the number of spans exported since creation or the last {@link #reset()}, including
+     * those no longer retained
+     */
+    public synchronized long getExportedSpanCount() {
+        return exportedSpans;
+    }
+
+    /**
+     * Discards the retained spans and resets the exported span count.
+     */
+    public synchronized void reset() {
+        spans.clear();
+        exportedSpans = 0;
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public synchronized CompletableResultCode shutdown() {
+        stopped = true;
+        return CompletableResultCode.ofSuccess();
+    }
+}
@@ -0,0 +1,192 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link SpanExporter} that appends spans as newline delimited JSON to rolling files on local disk.
+ * <p>
+ * Rows have the same layout as the {@code JSONEachRow} inserts of the {@link ClickHouseSpanExporter},
+ * so the files can later be loaded into ClickHouse as they are. Each batch is encoded into a pooled
+ * {@link PayloadBuffer} and written to the file channel in one go.
+ * <p>
+ * The active file has the suffix {@code .ndjson.part}. It is renamed to {@code .ndjson} when it is
+ * rotated, after {@code logboekdataverwerking.exporter.file.max-size-bytes} bytes or
+ * {@code logboekdataverwerking.exporter.file.rotate-interval-ms}, and on shutdown. Completed files
+ * are therefore never written to again.
+ */
+public final class NdjsonFileSpanExporter implements SpanExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(NdjsonFileSpanExporter.class.getName());
+
+    static final String SUFFIX = ".ndjson";
+    static final String ACTIVE_SUFFIX = SUFFIX + ".part";
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final long rotateIntervalMillis;
+    private final LdvMetrics metrics;
+    private final SpanPayloadWriter spanWriter = SpanPayloadWriter.forFormat(ClickHouseFormat.JSONEachRow);
+
+    private FileChannel channel;
+    private Path activeFile;
+    private long activeSize;
+    private long activeSince;
+    private int sequence;
+    private boolean stopped;
+
+    /**
+     * Creates the exporter using the current {@link LdvSettings}.
+     *
+     * @param metrics the metrics to record writes on
+     * @throws ConfigurationException if configuration cannot be read or the directory cannot be created
+     */
+    public NdjsonFileSpanExporter(LdvMetrics metrics) throws ConfigurationException {
+        this(LdvSettings.current().exporter(), metrics);
+    }
+
+    /**
+     * Creates the exporter using the given settings.
+     *
+     * @param settings the exporter settings
+     * @param metrics  the metrics to record writes on
+     * @throws ConfigurationException if the directory cannot be created
+     */
+    public NdjsonFileSpanExporter(LdvSettings.Exporter settings, LdvMetrics metrics) throws ConfigurationException {
+        this.metrics = metrics;
+        this.directory = settings.fileDirectory();
+        this.maxFileSize = settings.fileMaxSizeBytes();
+        this.rotateIntervalMillis = settings.fileRotateIntervalMillis();
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new ConfigurationException("Failed to create span file directory " + directory, e);
+        }
+    }
+
+    /**
+     * Appends the spans to the active file, rotating it first when it is full or too old.
+     *
+     * @param spans the spans to export
+     * @return success, or failure if the spans could not be written
+     */
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+        if (stopped || spans.isEmpty()) {
+            return stopped ? CompletableResultCode.ofFailure() : CompletableResultCode.ofSuccess();
+        }
+
+        PayloadBuffer payload = PayloadBuffer.acquire();
+        try {
+            long start = System.nanoTime();
+            spanWriter.write(spans, payload);
+            metrics.recordSerialization(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            boolean success = false;
+            try {
+                rotateIfNeeded(payload.size());
+                ByteBuffer buffer = payload.toByteBuffer();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                activeSize += payload.size();
+                success = true;
+            } finally {
+                metrics.recordInsert(spans.size(), payload.size(), System.nanoTime() - start, success);
+            }
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to write spans to " + activeFile, e);
+            metrics.recordDropped(spans.size(), "file_error");
+            return CompletableResultCode.ofFailure();
+        } finally {
+            payload.release();
+        }
+    }
+
+    /**
+     * Forces the written spans to disk.
+     *
+     * @return success, or failure if the file could not be synced
+     */
+    @Override
+    public synchronized CompletableResultCode flush() {
+        if (channel == null) {
+            return CompletableResultCode.ofSuccess();
+        }
+        try {
+            channel.force(false);
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to sync " + activeFile, e);
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    /**
+     * Completes the active file.
+     *
+     * @return success, or failure if the file could not be closed
+     */
+    @Override
+    public synchronized CompletableResultCode shutdown() {
+        stopped = true;
+        try {
+            complete();
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to close " + activeFile, e);
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    private void rotateIfNeeded(int bytes) throws IOException {
+        if (channel != null && activeSize > 0
+                && (activeSize + bytes > maxFileSize || System.currentTimeMillis() - activeSince >= rotateIntervalMillis)) {
+            complete();
+        }
+        if (channel == null) {
+            long now = System.currentTimeMillis();
+            activeFile = directory.resolve("spans-" + FILE_TIME.format(Instant.ofEpochMilli(now)) + "-" + sequence++ + ACTIVE_SUFFIX);
+            channel = FileChannel.open(activeFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            activeSize = 0;
+            activeSince = now;
+        }
+    }
+
+    /**
+     * Syncs and closes the active file and gives it its final name.
+     */
+    private void complete() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try (FileChannel closing = channel) {
+            channel = null;
+            closing.force(false);
+        }
+        String name = activeFile.getFileName().toString();
+        Files.move(activeFile, activeFile.resolveSibling(name.replace(ACTIVE_SUFFIX, SUFFIX)), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,70 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Growable byte buffer used to assemble an insert payload in memory.
+ * <p>
+ * Unlike {@link ByteArrayOutputStream#toByteArray()}, {@link #toInputStream()} exposes the
+ * written bytes without copying them. Buffers are obtained from and returned to a small
+ * pool via {@link #acquire()} and {@link #release()} so the backing arrays are reused
+ * across export batches.
+ */
+public final class PayloadBuffer extends ByteArrayOutputStream {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024 * 1024;
+    private static final BlockingQueue<PayloadBuffer> POOL = new ArrayBlockingQueue<>(8);
+
+    private PayloadBuffer() {
+        super(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns an empty buffer, reusing a pooled one when available.
+     *
+     * @return an empty buffer
+     */
+    public static PayloadBuffer acquire() {
+        PayloadBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : new PayloadBuffer();
+    }
+
+    /**
+     * Resets this buffer and returns it to the pool. Buffers that grew beyond the retained
+     * capacity are discarded so a single large batch does not pin memory. The buffer and any
+     * stream obtained from {@link #toInputStream()} must not be used after release.
+     */
+    public void release() {
+        reset();
+        if (buf.length <= MAX_RETAINED_CAPACITY) {
+            POOL.offer(this);
+        }
+    }
+
+    /**
+     * @return the backing array; only the first {@link #size()} bytes are valid
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * @return an input stream over the written bytes, backed by this buffer's array
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * @return a byte buffer over the written bytes, backed by this buffer's array
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
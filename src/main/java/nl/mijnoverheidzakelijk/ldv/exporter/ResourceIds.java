@@ -0,0 +1,59 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.resources.Resource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes the stable id under which a {@link Resource} is stored in the resources table.
+ * <p>
+ * The id is derived from the sorted resource attributes, so every process with the same resource
+ * produces the same id. A process normally has a single resource, so the last result is cached.
+ */
+final class ResourceIds {
+
+    private static volatile Entry last;
+
+    private ResourceIds() {
+    }
+
+    /**
+     * @param resource the resource
+     * @return a positive 63-bit id, stable across processes
+     */
+    static long of(Resource resource) {
+        Entry entry = last;
+        if (entry != null && entry.resource == resource) {
+            return entry.id;
+        }
+        long id = compute(resource);
+        last = new Entry(resource, id);
+        return id;
+    }
+
+    private static long compute(Resource resource) {
+        Map<String, String> sorted = new TreeMap<>();
+        resource.getAttributes().forEach((AttributeKey<?> key, Object value) -> sorted.put(key.getKey(), String.valueOf(value)));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            sorted.forEach((key, value) -> {
+                digest.update(key.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '=');
+                digest.update(value.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            });
+            return ByteBuffer.wrap(digest.digest()).getLong() & Long.MAX_VALUE;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private record Entry(Resource resource, long id) {
+    }
+}
@@ -0,0 +1,121 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import nl.mijnoverheidzakelijk.ldv.repository.ClickHouseRepository;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registers the resources of exported spans in the resources table, once per resource.
+ * <p>
+ * Rows of a registered resource only carry its id. Registration runs asynchronously and never
+ * blocks the export of spans. Until a resource is registered, for example while its registration is
+ * in flight or ClickHouse is unreachable, its attributes are written inline so no information is
+ * lost; registration is retried at most every {@value #RETRY_DELAY_SECONDS} seconds.
+ */
+final class ResourceRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceRegistry.class.getName());
+    private static final long RETRY_DELAY_SECONDS = 30;
+
+    private final ClickHouseRepository repository;
+    private final String resourceTable;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Set<Long> registered = ConcurrentHashMap.newKeySet();
+    private final Set<Long> registering = ConcurrentHashMap.newKeySet();
+    private volatile long retryAfter = System.nanoTime();
+
+    /**
+     * @param repository    the repository to insert into
+     * @param resourceTable the resources table
+     */
+    ResourceRegistry(ClickHouseRepository repository, String resourceTable) {
+        this.repository = repository;
+        this.resourceTable = resourceTable;
+    }
+
+    /**
+     * @param resourceId the id from {@link ResourceIds#of(Resource)}
+     * @return whether the resource is stored in the resources table
+     */
+    boolean isRegistered(long resourceId) {
+        return registered.contains(resourceId);
+    }
+
+    /**
+     * Starts the registration of the resources of the given spans that are not registered yet,
+     * without waiting for it.
+     *
+     * @param spans the spans about to be exported
+     */
+    void registerAll(Collection<SpanData> spans) {
+        Resource last = null;
+        for (SpanData span : spans) {
+            Resource resource = span.getResource();
+            if (resource != last) {
+                last = resource;
+                register(resource);
+            }
+        }
+    }
+
+    private void register(Resource resource) {
+        long resourceId = ResourceIds.of(resource);
+        if (registered.contains(resourceId) || System.nanoTime() - retryAfter < 0 || !registering.add(resourceId)) {
+            return;
+        }
+        ByteBuffer row;
+        try {
+            row = ByteBuffer.wrap(toJson(resourceId, resource).getBytes(StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            registering.remove(resourceId);
+            throw e;
+        }
+        repository.insertAsync(resourceTable, row, ClickHouseFormat.JSONEachRow)
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        registered.add(resourceId);
+                    } else {
+                        retryAfter = System.nanoTime() + TimeUnit.SECONDS.toNanos(RETRY_DELAY_SECONDS);
+                        LOGGER.log(Level.WARNING, "Failed to register resource, writing it inline", error);
+                    }
+                    registering.remove(resourceId);
+                });
+    }
+
+    private String toJson(long resourceId, Resource resource) {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("resourceId", resourceId);
+            generator.writeStringField("service", resource.getAttribute(SpanPayloadWriter.SERVICE_NAME));
+            generator.writeObjectFieldStart("attributes");
+            resource.getAttributes().forEach((key, value) -> {
+                try {
+                    generator.writeStringField(key.getKey(), String.valueOf(value));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return json.toString();
+    }
+}
@@ -0,0 +1,445 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.logboekdataverwerking.LogboekAttributes;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link SpanProcessor} that queues ended spans in lock-free ring buffers and exports them in
+ * batches from a single worker thread.
+ * <p>
+ * Unlike the {@code BatchSpanProcessor}, the worker does not wait for the result of an export
+ * before starting the next one, so the in-flight inserts of the {@link ClickHouseSpanExporter} are
+ * actually used. The call to {@link SpanExporter#export} itself does run on the worker: when the
+ * exporter blocks, e.g. while all in-flight slots are taken or while it appends to the spool, the
+ * rings are not drained in the meantime and ending spans run into the overflow policy.
+ * {@code logboekdataverwerking.batch.export-timeout-ms} only bounds the wait for outstanding
+ * exports at shutdown. Processing records and technical spans are queued separately; processing
+ * records are exported first and are never evicted in favour of technical spans.
+ * <p>
+ * When the queue ({@code logboekdataverwerking.batch.max-queue-size}) is full, the
+ * {@code logboekdataverwerking.queue.overflow-policy} decides what happens:
+ * <ul>
+ *     <li>{@code drop-oldest-non-audit} (default): the oldest queued technical span is dropped to
+ *     make room. A processing record finding only processing records queued is handled as with
+ *     {@code block}.</li>
+ *     <li>{@code block}: the ending thread waits up to {@code logboekdataverwerking.queue.block-timeout-ms}
+ *     for room and drops the span after that.</li>
+ *     <li>{@code spill}: the span is written to the on-disk spool via the {@link OverflowSink},
+ *     together with up to a batch of queued spans, so the spool receives batches rather than single
+ *     spans and the queue has room again for the spans that follow.</li>
+ * </ul>
+ * Like the {@code BatchSpanProcessor}, the processor counts spans in the {@code processedSpans}
+ * metric with a {@code dropped} attribute and reports the queue length as {@code queueSize}.
+ */
+public final class RingBufferSpanProcessor implements SpanProcessor {
+
+    private static final Logger LOGGER = Logger.getLogger(RingBufferSpanProcessor.class.getName());
+
+    private static final AttributeKey<String> PROCESSOR_TYPE = AttributeKey.stringKey("processorType");
+    private static final AttributeKey<Boolean> DROPPED = AttributeKey.booleanKey("dropped");
+    private static final String PROCESSOR_NAME = RingBufferSpanProcessor.class.getSimpleName();
+    private static final Attributes EXPORTED_ATTRIBUTES = Attributes.of(PROCESSOR_TYPE, PROCESSOR_NAME, DROPPED, false);
+    private static final Attributes DROPPED_ATTRIBUTES = Attributes.of(PROCESSOR_TYPE, PROCESSOR_NAME, DROPPED, true);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * What to do with an ended span when the queue is full.
+     */
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST_NON_AUDIT,
+        SPILL;
+
+        /**
+         * @param value the configured value, e.g. {@code drop-oldest-non-audit}
+         * @return the policy
+         * @throws ConfigurationException if the value is unknown
+         */
+        public static OverflowPolicy parse(String value) throws ConfigurationException {
+            try {
+                return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Unknown overflow policy: " + value);
+            }
+        }
+    }
+
+    /**
+     * Destination of spans the queue has no room for under {@link OverflowPolicy#SPILL}.
+     */
+    @FunctionalInterface
+    public interface OverflowSink {
+
+        /**
+         * Stores spans outside of the queue. Called on the thread ending the span.
+         *
+         * @param spans the spans, in one batch
+         * @return {@code false} if the spans could not be stored and are lost
+         */
+        boolean spill(Collection<SpanData> spans);
+    }
+
+    private final SpanExporter exporter;
+    private final OverflowSink overflowSink;
+    private final LdvMetrics metrics;
+    private final MpmcRingBuffer<ReadableSpan> auditQueue;
+    private final MpmcRingBuffer<ReadableSpan> technicalQueue;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int maxQueueSize;
+    private final int maxExportBatchSize;
+    private final long scheduleDelayNanos;
+    private final long exportTimeoutMillis;
+    private final long shutdownTimeoutNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final LongCounter processedSpans;
+    private final Set<CompletableResultCode> outstanding = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<CompletableResultCode> flushRequest = new AtomicReference<>();
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+    private final CompletableResultCode shutdownResult = new CompletableResultCode();
+    private volatile long shutdownDeadline;
+    private final Thread worker;
+
+    /**
+     * Creates the processor using the {@code logboekdataverwerking.batch.*} and
+     * {@code logboekdataverwerking.queue.*} values of the current {@link LdvSettings}, and starts
+     * its worker thread.
+     *
+     * @param exporter     the exporter receiving the batches
+     * @param overflowSink destination of overflowing spans under the {@code spill} policy, may be
+     *                     {@code null} if that policy is not used
+     * @param meter        meter for the {@code processedSpans} and {@code queueSize} metrics
+     * @param metrics      metrics to record dropped spans on
+     * @throws ConfigurationException if configuration cannot be read or is invalid
+     */
+    public RingBufferSpanProcessor(SpanExporter exporter, OverflowSink overflowSink, Meter meter, LdvMetrics metrics) throws ConfigurationException {
+        this(LdvSettings.current(), exporter, overflowSink, meter, metrics);
+    }
+
+    /**
+     * Creates the processor using the given settings and starts its worker thread.
+     *
+     * @param settings     the settings
+     * @param exporter     the exporter receiving the batches
+     * @param overflowSink destination of overflowing spans under the {@code spill} policy, may be
+     *                     {@code null} if that policy is not used
+     * @param meter        meter for the {@code processedSpans} and {@code queueSize} metrics
+     * @param metrics      metrics to record dropped spans on
+     * @throws ConfigurationException if the spill policy is configured without an overflow sink
+     */
+    public RingBufferSpanProcessor(LdvSettings settings, SpanExporter exporter, OverflowSink overflowSink, Meter meter,
+                                   LdvMetrics metrics) throws ConfigurationException {
+        this.exporter = exporter;
+        this.overflowSink = overflowSink;
+        this.metrics = metrics;
+        this.maxQueueSize = settings.batch().maxQueueSize();
+        this.maxExportBatchSize = settings.batch().maxExportBatchSize();
+        this.scheduleDelayNanos = TimeUnit.MILLISECONDS.toNanos(settings.batch().scheduleDelayMillis());
+        this.exportTimeoutMillis = settings.batch().exportTimeoutMillis();
+        this.shutdownTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.shutdownTimeoutMillis());
+        this.overflowPolicy = OverflowPolicy.parse(settings.queue().overflowPolicy());
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.queue().blockTimeoutMillis());
+        if (overflowPolicy == OverflowPolicy.SPILL && overflowSink == null) {
+            throw new ConfigurationException("Overflow policy spill requires logboekdataverwerking.enabled and a spool");
+        }
+
+        // Both rings can hold the whole queue, the shared pending count enforces the capacity.
+        this.auditQueue = new MpmcRingBuffer<>(maxQueueSize);
+        this.technicalQueue = new MpmcRingBuffer<>(maxQueueSize);
+
+        this.processedSpans = meter.counterBuilder("processedSpans")
+                .setUnit("1")
+                .setDescription("The number of spans processed by the RingBufferSpanProcessor. [dropped=true if they were dropped due to high throughput]")
+                .build();
+        meter.gaugeBuilder("queueSize")
+                .ofLongs()
+                .setDescription("The number of items queued")
+                .setUnit("1")
+                .buildWithCallback(measurement -> measurement.record(pending.get(), Attributes.of(PROCESSOR_TYPE, PROCESSOR_NAME)));
+
+        this.worker = new Thread(this::run, "ldv-span-processor");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return false;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        if (!span.getSpanContext().isSampled() || shutdown.get()) {
+            return;
+        }
+        boolean audit = LogboekAttributes.isProcessingRecord(span);
+        if (reserve()) {
+            enqueue(span, audit);
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST_NON_AUDIT -> {
+                ReadableSpan evicted = technicalQueue.poll();
+                if (evicted != null) {
+                    // The evicted span's slot is taken over, so the pending count stays the same.
+                    dropped(1, true);
+                    enqueue(span, audit);
+                } else if (audit) {
+                    blockAndEnqueue(span, true);
+                } else {
+                    dropped(1, true);
+                }
+            }
+            case BLOCK -> blockAndEnqueue(span, audit);
+            case SPILL -> spill(span);
+        }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    /**
+     * Exports all spans queued at the time of the call and waits for every outstanding export and
+     * the exporter's own flush.
+     *
+     * @return a result completing once the queued spans are exported
+     */
+    @Override
+    public CompletableResultCode forceFlush() {
+        if (shutdown.get()) {
+            return shutdownResult;
+        }
+        CompletableResultCode result = new CompletableResultCode();
+        CompletableResultCode existing = flushRequest.compareAndExchange(null, result);
+        if (existing != null) {
+            return existing;
+        }
+        LockSupport.unpark(worker);
+        return result;
+    }
+
+    /**
+     * Stops accepting spans, exports the queued ones, waits for outstanding exports and shuts the
+     * exporter down. The wait is bounded by {@code logboekdataverwerking.batch.export-timeout-ms}
+     * and by what is left of {@code logboekdataverwerking.shutdown.timeout-ms}, counted from this call.
+     *
+     * @return a result completing once the exporter is shut down
+     */
+    @Override
+    public CompletableResultCode shutdown() {
+        if (shutdown.compareAndSet(false, true)) {
+            shutdownDeadline = System.nanoTime() + shutdownTimeoutNanos;
+            LockSupport.unpark(worker);
+        }
+        return shutdownResult;
+    }
+
+    /**
+     * Claims a place in the queue.
+     */
+    private boolean reserve() {
+        int current = pending.get();
+        while (current < maxQueueSize) {
+            if (pending.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = pending.get();
+        }
+        return false;
+    }
+
+    /**
+     * Adds a span for which a place is claimed. The rings can always take it, since the number of
+     * queued spans never exceeds the pending count.
+     */
+    private void enqueue(ReadableSpan span, boolean audit) {
+        if (!(audit ? auditQueue : technicalQueue).offer(span)) {
+            pending.decrementAndGet();
+            dropped(1, true);
+            return;
+        }
+        if (pending.get() >= maxExportBatchSize) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Spills the span together with the queued spans that fit in a batch.
+     */
+    private void spill(ReadableSpan span) {
+        List<SpanData> batch = poll(maxExportBatchSize - 1);
+        batch.add(span.toSpanData());
+        if (overflowSink.spill(batch)) {
+            processedSpans.add(batch.size(), EXPORTED_ATTRIBUTES);
+        } else {
+            // The sink records the reason it could not store the spans.
+            dropped(batch.size(), false);
+        }
+    }
+
+    private void blockAndEnqueue(ReadableSpan span, boolean audit) {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        do {
+            LockSupport.unpark(worker);
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            if (reserve()) {
+                enqueue(span, audit);
+                return;
+            }
+        } while (System.nanoTime() - deadline < 0 && !shutdown.get());
+        if (audit) {
+            LOGGER.log(Level.WARNING, "Span queue stayed full, dropping processing record " + span.getName());
+        }
+        dropped(1, true);
+    }
+
+    private void dropped(int spans, boolean record) {
+        processedSpans.add(spans, DROPPED_ATTRIBUTES);
+        if (record) {
+            metrics.recordDropped(spans, "queue_full");
+        }
+    }
+
+    private void run() {
+        long nextExport = System.nanoTime() + scheduleDelayNanos;
+        while (true) {
+            CompletableResultCode flush = flushRequest.get();
+            boolean stopping = shutdown.get();
+            long now = System.nanoTime();
+            if (flush == null && !stopping && pending.get() < maxExportBatchSize && now - nextExport < 0) {
+                LockSupport.parkNanos(this, nextExport - now);
+                continue;
+            }
+
+            if (flush != null || stopping) {
+                // Bounded by the queue length now, so a steady stream of new spans cannot keep us here.
+                int remaining = pending.get();
+                int exported;
+                do {
+                    exported = exportBatch();
+                    remaining -= exported;
+                } while (exported > 0 && remaining > 0);
+            } else {
+                int exported;
+                do {
+                    exported = exportBatch();
+                } while (exported == maxExportBatchSize && pending.get() >= maxExportBatchSize);
+            }
+            nextExport = System.nanoTime() + scheduleDelayNanos;
+
+            if (flush != null) {
+                flushRequest.compareAndSet(flush, null);
+                completeWhenExported(flush, exporter.flush());
+            }
+            if (stopping) {
+                finishShutdown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands one batch to the exporter without waiting for it to complete.
+     *
+     * @return the number of exported spans
+     */
+    private int exportBatch() {
+        List<SpanData> batch = poll(maxExportBatchSize);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        processedSpans.add(batch.size(), EXPORTED_ATTRIBUTES);
+        try {
+            CompletableResultCode result = exporter.export(batch);
+            outstanding.add(result);
+            result.whenComplete(() -> outstanding.remove(result));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Exporter threw an exception", e);
+        }
+        return batch.size();
+    }
+
+    /**
+     * Takes up to {@code max} queued spans, processing records first. The returned list has room
+     * for one more span.
+     */
+    private List<SpanData> poll(int max) {
+        List<SpanData> batch = new ArrayList<>(Math.min(Math.max(pending.get(), 0), max) + 1);
+        ReadableSpan span;
+        while (batch.size() < max
+                && ((span = auditQueue.poll()) != null || (span = technicalQueue.poll()) != null)) {
+            pending.decrementAndGet();
+            batch.add(span.toSpanData());
+        }
+        return batch;
+    }
+
+    private void completeWhenExported(CompletableResultCode target, CompletableResultCode... additional) {
+        List<CompletableResultCode> results = new ArrayList<>(outstanding);
+        results.addAll(List.of(additional));
+        CompletableResultCode all = CompletableResultCode.ofAll(results);
+        all.whenComplete(() -> {
+            if (all.isSuccess()) {
+                target.succeed();
+            } else {
+                target.fail();
+            }
+        });
+    }
+
+    private void finishShutdown() {
+        CompletableResultCode flush = flushRequest.getAndSet(null);
+        List<CompletableResultCode> results = new ArrayList<>(outstanding);
+        results.add(exporter.flush());
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(shutdownDeadline - System.nanoTime());
+        CompletableResultCode exported = CompletableResultCode.ofAll(results)
+                .join(Math.max(0, Math.min(exportTimeoutMillis, remainingMillis)), TimeUnit.MILLISECONDS);
+        if (!exported.isDone()) {
+            LOGGER.log(Level.WARNING, "Timed out waiting for outstanding span exports during shutdown");
+        }
+        if (flush != null) {
+            flush.succeed();
+        }
+        CompletableResultCode stopped = exporter.shutdown();
+        stopped.whenComplete(() -> {
+            if (exported.isSuccess() && stopped.isSuccess()) {
+                shutdownResult.succeed();
+            } else {
+                shutdownResult.fail();
+            }
+        });
+    }
+}
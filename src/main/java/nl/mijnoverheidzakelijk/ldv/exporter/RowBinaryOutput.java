@@ -0,0 +1,169 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered encoder for the primitives of the ClickHouse {@code RowBinary} format.
+ * <p>
+ * Values are encoded into an internal scratch array and written to the underlying stream
+ * in blocks. Strings are UTF-8 encoded in place, without creating intermediate byte arrays.
+ * Instances are reusable via {@link #reset(OutputStream)} and are not thread-safe.
+ */
+final class RowBinaryOutput {
+
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private OutputStream out;
+
+    /**
+     * Points this encoder at a new target stream, discarding any unflushed bytes.
+     *
+     * @param out the target stream
+     */
+    void reset(OutputStream out) {
+        this.out = out;
+        this.position = 0;
+    }
+
+    /**
+     * Writes an unsigned LEB128 integer, as used for string lengths and collection sizes.
+     */
+    void writeVarInt(long value) throws IOException {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a little-endian 64-bit integer ({@code Int64}).
+     */
+    void writeInt64(long value) throws IOException {
+        ensureCapacity(8);
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Writes a little-endian 64-bit IEEE 754 value ({@code Float64}).
+     */
+    void writeFloat64(double value) throws IOException {
+        writeInt64(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Writes a {@code Bool} as a single byte.
+     */
+    void writeBool(boolean value) throws IOException {
+        ensureCapacity(1);
+        buffer[position++] = (byte) (value ? 1 : 0);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 {@code String}. A {@code null} value is written as empty.
+     */
+    void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(utf8Length(value));
+        writeUtf8(value);
+    }
+
+    /**
+     * Writes an ASCII value as {@code FixedString(length)}, zero-padded or truncated to exactly
+     * {@code length} bytes. Intended for hex encoded trace and span ids.
+     */
+    void writeFixedString(String value, int length) throws IOException {
+        ensureCapacity(length);
+        int valueLength = value == null ? 0 : Math.min(value.length(), length);
+        for (int i = 0; i < valueLength; i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+        for (int i = valueLength; i < length; i++) {
+            buffer[position++] = 0;
+        }
+    }
+
+    /**
+     * Writes pre-encoded bytes, e.g. a cached encoding of a value.
+     */
+    void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flush();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Writes the remaining buffered bytes to the target stream.
+     */
+    void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void writeUtf8(String value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            ensureCapacity(4);
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = (byte) '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            flush();
+        }
+    }
+}
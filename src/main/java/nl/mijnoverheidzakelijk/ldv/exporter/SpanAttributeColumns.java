@@ -0,0 +1,96 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import nl.mijnoverheidzakelijk.ldv.logboekdataverwerking.LogboekAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the attributes of a span over the columns of the span table.
+ * <p>
+ * The well-known {@code dpl.core.*} string attributes go to their dedicated columns. Of the
+ * remaining attributes, {@code long}, {@code double} and {@code boolean} values keep their type in
+ * the {@code longAttributes}, {@code doubleAttributes} and {@code boolAttributes} maps; strings and
+ * arrays are stored as text in {@code attributes}. Instances are reused for every span written by
+ * one writer and are not thread-safe.
+ */
+final class SpanAttributeColumns {
+
+    String processingActivityId;
+    String dataSubjectId;
+    String dataSubjectType;
+    String foreignOperationSpanId;
+    String foreignOperationProcessor;
+
+    final List<String> stringKeys = new ArrayList<>();
+    final List<String> stringValues = new ArrayList<>();
+    final List<String> longKeys = new ArrayList<>();
+    final List<Long> longValues = new ArrayList<>();
+    final List<String> doubleKeys = new ArrayList<>();
+    final List<Double> doubleValues = new ArrayList<>();
+    final List<String> boolKeys = new ArrayList<>();
+    final List<Boolean> boolValues = new ArrayList<>();
+
+    /**
+     * Replaces the current values with those of the given attributes.
+     *
+     * @param attributes the span attributes
+     */
+    void split(Attributes attributes) {
+        processingActivityId = null;
+        dataSubjectId = null;
+        dataSubjectType = null;
+        foreignOperationSpanId = null;
+        foreignOperationProcessor = null;
+        stringKeys.clear();
+        stringValues.clear();
+        longKeys.clear();
+        longValues.clear();
+        doubleKeys.clear();
+        doubleValues.clear();
+        boolKeys.clear();
+        boolValues.clear();
+        attributes.forEach(this::add);
+    }
+
+    private void add(AttributeKey<?> key, Object value) {
+        switch (key.getType()) {
+            case STRING -> addString(key, (String) value);
+            case LONG -> {
+                longKeys.add(key.getKey());
+                longValues.add((Long) value);
+            }
+            case DOUBLE -> {
+                doubleKeys.add(key.getKey());
+                doubleValues.add((Double) value);
+            }
+            case BOOLEAN -> {
+                boolKeys.add(key.getKey());
+                boolValues.add((Boolean) value);
+            }
+            default -> {
+                stringKeys.add(key.getKey());
+                stringValues.add(String.valueOf(value));
+            }
+        }
+    }
+
+    private void addString(AttributeKey<?> key, String value) {
+        if (key.equals(LogboekAttributes.PROCESSING_ACTIVITY_ID)) {
+            processingActivityId = value;
+        } else if (key.equals(LogboekAttributes.DATA_SUBJECT_ID)) {
+            dataSubjectId = value;
+        } else if (key.equals(LogboekAttributes.DATA_SUBJECT_ID_TYPE)) {
+            dataSubjectType = value;
+        } else if (key.equals(LogboekAttributes.FOREIGN_OPERATION_SPAN_ID)) {
+            foreignOperationSpanId = value;
+        } else if (key.equals(LogboekAttributes.FOREIGN_OPERATION_PROCESSOR)) {
+            foreignOperationProcessor = value;
+        } else {
+            stringKeys.add(key.getKey());
+            stringValues.add(value);
+        }
+    }
+}
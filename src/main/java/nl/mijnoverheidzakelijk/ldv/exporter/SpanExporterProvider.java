@@ -0,0 +1,32 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+/**
+ * Service provider interface for additional span export backends.
+ * <p>
+ * Implementations are discovered with {@link java.util.ServiceLoader}, registered in
+ * {@code META-INF/services/nl.mijnoverheidzakelijk.ldv.exporter.SpanExporterProvider}, and selected
+ * when {@code logboekdataverwerking.exporter.type} equals their {@link #name()}. The built-in
+ * backends {@code clickhouse}, {@code file} and {@code memory} are provided by {@link SpanExporters}.
+ */
+public interface SpanExporterProvider {
+
+    /**
+     * @return the value of {@code logboekdataverwerking.exporter.type} selecting this backend
+     */
+    String name();
+
+    /**
+     * Creates the exporter, typically reading its own configuration through
+     * {@link nl.mijnoverheidzakelijk.ldv.config.ConfigurationLoader}; these keys are not known to
+     * {@link nl.mijnoverheidzakelijk.ldv.config.LdvSettings}.
+     *
+     * @param metrics the metrics to record the export pipeline on
+     * @return the exporter
+     * @throws ConfigurationException if configuration cannot be read or is invalid
+     */
+    SpanExporter create(LdvMetrics metrics) throws ConfigurationException;
+}
@@ -0,0 +1,48 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.util.ServiceLoader;
+
+/**
+ * Creates the span export backend selected by {@code logboekdataverwerking.exporter.type}:
+ * <ul>
+ *     <li>{@code clickhouse} (default): {@link ClickHouseSpanExporter}.</li>
+ *     <li>{@code file}: {@link NdjsonFileSpanExporter}, rolling NDJSON files on local disk.</li>
+ *     <li>{@code memory}: {@link InMemorySpanExporter}, the most recent spans kept in memory.</li>
+ *     <li>any other name: the {@link SpanExporterProvider} with that name.</li>
+ * </ul>
+ */
+public final class SpanExporters {
+
+    private SpanExporters() {
+    }
+
+    /**
+     * @param settings the settings
+     * @param metrics  the metrics to record the export pipeline on
+     * @return the configured exporter
+     * @throws ConfigurationException if a required setting is missing or no backend has the configured name
+     */
+    public static SpanExporter create(LdvSettings settings, LdvMetrics metrics) throws ConfigurationException {
+        String type = settings.exporter().type();
+        return switch (type) {
+            case "clickhouse" -> new ClickHouseSpanExporter(settings, metrics, settings.queue().spill());
+            case "file" -> new NdjsonFileSpanExporter(settings.exporter(), metrics);
+            case "memory" -> new InMemorySpanExporter(settings.exporter().memoryCapacity());
+            default -> provided(type, metrics);
+        };
+    }
+
+    private static SpanExporter provided(String type, LdvMetrics metrics) throws ConfigurationException {
+        for (SpanExporterProvider provider : ServiceLoader.load(SpanExporterProvider.class)) {
+            if (provider.name().equalsIgnoreCase(type)) {
+                return provider.create(metrics);
+            }
+        }
+        throw new ConfigurationException("Unsupported value for logboekdataverwerking.exporter.type: " + type);
+    }
+}
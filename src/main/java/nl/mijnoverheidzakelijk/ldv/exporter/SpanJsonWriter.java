@@ -0,0 +1,159 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.SpanData;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams spans as ClickHouse {@code JSONEachRow} rows directly into an {@link OutputStream}.
+ * <p>
+ * Each span is written field by field with a Jackson {@link JsonGenerator}, so no intermediate
+ * maps or strings are created per span. The well-known {@code dpl.core.*} attributes are written
+ * as separate fields and numeric and boolean attributes keep their JSON type, see
+ * {@link SpanAttributeColumns}. The resource, which is shared by all spans of a process,
+ * is encoded once and reused, or left out entirely when it is stored in the resources table.
+ */
+final class SpanJsonWriter implements SpanPayloadWriter {
+
+    private final JsonFactory jsonFactory = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private final ResourceRegistry resourceRegistry;
+    private final SpanAttributeColumns columns = new SpanAttributeColumns();
+
+    private Resource cachedResource;
+    private long cachedResourceId;
+    private String cachedResourceJson;
+    private String cachedService;
+    private boolean cachedInline;
+
+    /**
+     * @param resourceRegistry registry deciding which resources are left out of the rows, or
+     *                         {@code null} to always write the resource inline
+     */
+    SpanJsonWriter(ResourceRegistry resourceRegistry) {
+        this.resourceRegistry = resourceRegistry;
+    }
+
+    @Override
+    public ClickHouseFormat format() {
+        return ClickHouseFormat.JSONEachRow;
+    }
+
+    /**
+     * Writes the given spans, one JSON object per line.
+     *
+     * @param spans the spans to write
+     * @param out   the target stream
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void write(Collection<SpanData> spans, OutputStream out) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.setRootValueSeparator(null);
+            cachedInline = isInline();
+            for (SpanData span : spans) {
+                writeSpan(generator, span);
+                generator.writeRaw('\n');
+            }
+        }
+    }
+
+    private void writeSpan(JsonGenerator generator, SpanData span) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("traceId", span.getTraceId());
+        generator.writeStringField("spanId", span.getSpanId());
+        generator.writeStringField("status", span.getStatus().getStatusCode().name());
+        generator.writeStringField("name", span.getName());
+        generator.writeNumberField("startTime", TimeUnit.NANOSECONDS.toMillis(span.getStartEpochNanos()));
+        generator.writeNumberField("endTime", TimeUnit.NANOSECONDS.toMillis(span.getEndEpochNanos()));
+        generator.writeStringField("parentSpanId", span.getParentSpanId());
+        columns.split(span.getAttributes());
+        generator.writeObjectFieldStart("attributes");
+        for (int i = 0; i < columns.stringKeys.size(); i++) {
+            generator.writeStringField(columns.stringKeys.get(i), columns.stringValues.get(i));
+        }
+        generator.writeEndObject();
+        cacheResource(span.getResource());
+        generator.writeFieldName("resource");
+        generator.writeRawValue(cachedInline ? cachedResourceJson : "{}");
+        generator.writeStringField("service", cachedService);
+        generator.writeNumberField("resourceId", cachedResourceId);
+        writeColumn(generator, "processingActivityId", columns.processingActivityId);
+        writeColumn(generator, "dataSubjectId", columns.dataSubjectId);
+        writeColumn(generator, "dataSubjectType", columns.dataSubjectType);
+        writeColumn(generator, "foreignOperationSpanId", columns.foreignOperationSpanId);
+        writeColumn(generator, "foreignOperationProcessor", columns.foreignOperationProcessor);
+        writeTypedMaps(generator);
+        generator.writeEndObject();
+    }
+
+    private static void writeColumn(JsonGenerator generator, String field, String value) throws IOException {
+        generator.writeStringField(field, value == null ? "" : value);
+    }
+
+    private void writeTypedMaps(JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart("longAttributes");
+        for (int i = 0; i < columns.longKeys.size(); i++) {
+            generator.writeNumberField(columns.longKeys.get(i), columns.longValues.get(i));
+        }
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("doubleAttributes");
+        for (int i = 0; i < columns.doubleKeys.size(); i++) {
+            generator.writeNumberField(columns.doubleKeys.get(i), columns.doubleValues.get(i));
+        }
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("boolAttributes");
+        for (int i = 0; i < columns.boolKeys.size(); i++) {
+            generator.writeBooleanField(columns.boolKeys.get(i), columns.boolValues.get(i));
+        }
+        generator.writeEndObject();
+    }
+
+    private void cacheResource(Resource resource) throws IOException {
+        if (resource == cachedResource) {
+            return;
+        }
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+            writeAttributes(generator, resource.getAttributes());
+        }
+        cachedResource = resource;
+        cachedResourceId = ResourceIds.of(resource);
+        cachedResourceJson = json.toString();
+        cachedService = resource.getAttribute(SERVICE_NAME);
+        cachedInline = isInline();
+    }
+
+    private boolean isInline() {
+        return resourceRegistry == null || cachedResource == null || !resourceRegistry.isRegistered(cachedResourceId);
+    }
+
+    private static void writeAttributes(JsonGenerator generator, Attributes attributes) throws IOException {
+        generator.writeStartObject();
+        try {
+            attributes.forEach((key, value) -> {
+                try {
+                    generator.writeStringField(key.getKey(), String.valueOf(value));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.writeEndObject();
+    }
+}
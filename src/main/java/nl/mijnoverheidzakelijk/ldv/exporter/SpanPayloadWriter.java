@@ -0,0 +1,64 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.trace.data.SpanData;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Encodes a batch of spans into an insert payload for a specific ClickHouse input format.
+ * <p>
+ * Implementations may keep scratch state between calls and are not thread-safe.
+ */
+interface SpanPayloadWriter {
+
+    /**
+     * Resource attribute written to the {@code service} column.
+     */
+    AttributeKey<String> SERVICE_NAME = AttributeKey.stringKey("service.name");
+
+    /**
+     * @return the ClickHouse format produced by {@link #write(Collection, OutputStream)}
+     */
+    ClickHouseFormat format();
+
+    /**
+     * Writes the given spans, in table column order, to the output stream.
+     *
+     * @param spans the spans to write
+     * @param out   the target stream
+     * @throws IOException if writing fails
+     */
+    void write(Collection<SpanData> spans, OutputStream out) throws IOException;
+
+    /**
+     * Returns the writer matching the given insert format, writing resources inline.
+     *
+     * @param format the configured insert format
+     * @return a new writer instance
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    static SpanPayloadWriter forFormat(ClickHouseFormat format) {
+        return forFormat(format, null);
+    }
+
+    /**
+     * Returns the writer matching the given insert format.
+     *
+     * @param format           the configured insert format
+     * @param resourceRegistry registry of resources stored in the resources table, or {@code null}
+     *                         to write resources inline
+     * @return a new writer instance
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    static SpanPayloadWriter forFormat(ClickHouseFormat format, ResourceRegistry resourceRegistry) {
+        return switch (format) {
+            case JSONEachRow -> new SpanJsonWriter(resourceRegistry);
+            case RowBinary -> new SpanRowBinaryWriter(resourceRegistry);
+            default -> throw new IllegalArgumentException("Unsupported insert format: " + format);
+        };
+    }
+}
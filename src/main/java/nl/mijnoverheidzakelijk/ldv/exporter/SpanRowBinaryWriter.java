@@ -0,0 +1,145 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import com.clickhouse.data.ClickHouseFormat;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import nl.mijnoverheidzakelijk.ldv.repository.RowBinaryLayout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes spans in the ClickHouse {@code RowBinary} format.
+ * <p>
+ * Columns are written in the order of {@link RowBinaryLayout#CURRENT}, which the repository names
+ * in the insert, so the server can store the rows without parsing any text. The well-known {@code dpl.core.*} attributes
+ * are written to their own columns and numeric and boolean attributes in their native encoding,
+ * see {@link SpanAttributeColumns}. The resource is encoded once and reused, or written as an
+ * empty map when it is stored in the resources table.
+ */
+final class SpanRowBinaryWriter implements SpanPayloadWriter {
+
+    private static final byte[] EMPTY_MAP = {0};
+
+    private final RowBinaryOutput output = new RowBinaryOutput();
+    private final SpanAttributeColumns columns = new SpanAttributeColumns();
+    private final ResourceRegistry resourceRegistry;
+
+    private Resource cachedResource;
+    private long cachedResourceId;
+    private byte[] cachedResourceBytes;
+    private byte[] cachedServiceBytes;
+    private boolean cachedInline;
+
+    /**
+     * @param resourceRegistry registry deciding which resources are left out of the rows, or
+     *                         {@code null} to always write the resource inline
+     */
+    SpanRowBinaryWriter(ResourceRegistry resourceRegistry) {
+        this.resourceRegistry = resourceRegistry;
+    }
+
+    @Override
+    public ClickHouseFormat format() {
+        return ClickHouseFormat.RowBinary;
+    }
+
+    @Override
+    public void write(Collection<SpanData> spans, OutputStream out) throws IOException {
+        output.reset(out);
+        cachedInline = isInline();
+        for (SpanData span : spans) {
+            output.writeFixedString(span.getTraceId(), 32);
+            output.writeFixedString(span.getSpanId(), 16);
+            output.writeString(span.getStatus().getStatusCode().name());
+            output.writeString(span.getName());
+            output.writeInt64(TimeUnit.NANOSECONDS.toMillis(span.getStartEpochNanos()));
+            output.writeInt64(TimeUnit.NANOSECONDS.toMillis(span.getEndEpochNanos()));
+            output.writeFixedString(span.getParentSpanId(), 16);
+            columns.split(span.getAttributes());
+            writeStringMap(columns.stringKeys, columns.stringValues);
+            cacheResource(span.getResource());
+            output.writeBytes(cachedInline ? cachedResourceBytes : EMPTY_MAP);
+            output.writeBytes(cachedServiceBytes);
+            output.writeInt64(cachedResourceId);
+            output.writeString(columns.processingActivityId);
+            output.writeString(columns.dataSubjectId);
+            output.writeString(columns.dataSubjectType);
+            output.writeString(columns.foreignOperationSpanId);
+            output.writeString(columns.foreignOperationProcessor);
+            writeTypedMaps();
+        }
+        output.flush();
+    }
+
+    private void cacheResource(Resource resource) throws IOException {
+        if (resource == cachedResource) {
+            return;
+        }
+        RowBinaryOutput encoder = new RowBinaryOutput();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encoder.reset(bytes);
+        writeAttributes(encoder, resource.getAttributes());
+        encoder.flush();
+        cachedResourceBytes = bytes.toByteArray();
+        bytes.reset();
+        encoder.writeString(resource.getAttribute(SERVICE_NAME));
+        encoder.flush();
+        cachedServiceBytes = bytes.toByteArray();
+        cachedResource = resource;
+        cachedResourceId = ResourceIds.of(resource);
+        cachedInline = isInline();
+    }
+
+    private boolean isInline() {
+        return resourceRegistry == null || cachedResource == null || !resourceRegistry.isRegistered(cachedResourceId);
+    }
+
+    private void writeStringMap(List<String> keys, List<String> values) throws IOException {
+        output.writeVarInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            output.writeString(keys.get(i));
+            output.writeString(values.get(i));
+        }
+    }
+
+    private void writeTypedMaps() throws IOException {
+        output.writeVarInt(columns.longKeys.size());
+        for (int i = 0; i < columns.longKeys.size(); i++) {
+            output.writeString(columns.longKeys.get(i));
+            output.writeInt64(columns.longValues.get(i));
+        }
+        output.writeVarInt(columns.doubleKeys.size());
+        for (int i = 0; i < columns.doubleKeys.size(); i++) {
+            output.writeString(columns.doubleKeys.get(i));
+            output.writeFloat64(columns.doubleValues.get(i));
+        }
+        output.writeVarInt(columns.boolKeys.size());
+        for (int i = 0; i < columns.boolKeys.size(); i++) {
+            output.writeString(columns.boolKeys.get(i));
+            output.writeBool(columns.boolValues.get(i));
+        }
+    }
+
+    private static void writeAttributes(RowBinaryOutput output, Attributes attributes) throws IOException {
+        output.writeVarInt(attributes.size());
+        try {
+            attributes.forEach((key, value) -> {
+                try {
+                    output.writeString(key.getKey());
+                    output.writeString(String.valueOf(value));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package nl.mijnoverheidzakelijk.ldv.loader;
+
+import com.clickhouse.data.ClickHouseFormat;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.repository.ClickHouseRepository;
+import nl.mijnoverheidzakelijk.ldv.repository.RowBinaryLayout;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Loads archived Logboek records from files into ClickHouse, e.g. to backfill after an outage or
+ * to re-ingest after a migration.
+ * <p>
+ * NDJSON files ({@code JSONEachRow}, as written by the {@code file} export backend) are memory
+ * mapped and split into chunks at line boundaries, and the chunks are inserted in parallel by a
+ * pool of worker threads. RowBinary files cannot be split without decoding them and are mapped
+ * and inserted whole, one file per worker. Either way the inserts go through the same path as those
+ * of the exporter, with deduplication, compression and failover to other nodes. At most twice as
+ * many chunks as there are workers are mapped at a time, so memory use does not depend on the size
+ * of the files.
+ * <p>
+ * RowBinary rows are inserted with the columns of their {@link RowBinaryLayout}: the one given with
+ * {@code --layout}, else the one in a file name such as {@code <name>.resource-id.rowbinary} as
+ * written by the spool quarantine, else the current layout.
+ * <p>
+ * A failed chunk is retried with exponential backoff. With
+ * {@code logboekdataverwerking.clickhouse.deduplicate} enabled, chunks that were stored despite an
+ * error are not stored twice, and a rerun of the same files within the deduplication window is
+ * harmless. Chunks that still fail are logged with their file and offset and the load continues.
+ * An NDJSON file with a line that does not fit in a chunk of 1 GB counts as a failed chunk as well,
+ * and the rest of that file is skipped; so does a RowBinary file larger than 1 GB.
+ * <p>
+ * The ClickHouse connection is configured with the usual {@code logboekdataverwerking.clickhouse.*}
+ * keys. Run {@code java nl.mijnoverheidzakelijk.ldv.loader.BulkLoader --help} for the options.
+ */
+public final class BulkLoader {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkLoader.class.getName());
+
+    private static final String USAGE = """
+            Usage: BulkLoader [options] <file or directory>...
+              --table <name>          target table (default: logboekdataverwerking.clickhouse.table)
+              --format <format>       JSONEachRow or RowBinary (default: RowBinary for *.rowbinary, else JSONEachRow)
+              --layout <layout>       columns of RowBinary rows: base, resource-id or typed-attributes
+                                      (default: from a *.<layout>.rowbinary file name, else typed-attributes)
+              --threads <n>           parallel inserts (default: number of processors)
+              --chunk-size-mb <n>     size of an NDJSON chunk (default: 64)
+              --retries <n>           retries of a failed chunk (default: 3)
+              --progress-interval-s <n>  interval of progress reports (default: 10)
+            Directories are searched for *.ndjson, *.jsonl and *.rowbinary files.""";
+
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024 * 1024;
+
+    private final ClickHouseRepository repository;
+    private final String table;
+    private final ClickHouseFormat format;
+    private final RowBinaryLayout layout;
+    private final int threads;
+    private final int chunkSize;
+    private final int retries;
+    private final long progressIntervalMillis;
+
+    private final AtomicLong loadedBytes = new AtomicLong();
+    private final AtomicLong loadedRows = new AtomicLong();
+    private final AtomicInteger failedChunks = new AtomicInteger();
+    private long totalBytes;
+    private long startNanos;
+
+    /**
+     * @param repository             the repository to insert with
+     * @param table                  the target table
+     * @param format                 format of all files, or {@code null} to go by the file extension
+     * @param layout                 layout of all RowBinary files, or {@code null} to go by the file name
+     * @param threads                number of parallel inserts
+     * @param chunkSize              size in bytes of an NDJSON chunk
+     * @param retries                number of retries of a failed chunk
+     * @param progressIntervalMillis interval between progress reports
+     */
+    public BulkLoader(ClickHouseRepository repository, String table, ClickHouseFormat format, RowBinaryLayout layout,
+                      int threads, int chunkSize, int retries, long progressIntervalMillis) {
+        this.repository = repository;
+        this.table = table;
+        this.format = format;
+        this.layout = layout;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.retries = Math.max(0, retries);
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * Command line entry point. Exits with {@code 0} when everything was loaded, {@code 1} when
+     * chunks failed and {@code 2} on invalid arguments or configuration.
+     *
+     * @param args the options and files, see {@code --help}
+     */
+    public static void main(String[] args) {
+        String table = null;
+        ClickHouseFormat format = null;
+        RowBinaryLayout layout = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSizeMb = 64;
+        int retries = 3;
+        long progressIntervalSeconds = 10;
+        List<Path> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--table" -> table = value(args, ++i);
+                    case "--format" -> format = format(value(args, ++i));
+                    case "--layout" -> layout = RowBinaryLayout.parse(value(args, ++i));
+                    case "--threads" -> threads = Integer.parseInt(value(args, ++i));
+                    case "--chunk-size-mb" -> chunkSizeMb = Integer.parseInt(value(args, ++i));
+                    case "--retries" -> retries = Integer.parseInt(value(args, ++i));
+                    case "--progress-interval-s" -> progressIntervalSeconds = Long.parseLong(value(args, ++i));
+                    case "--help", "-h" -> {
+                        System.out.println(USAGE);
+                        return;
+                    }
+                    default -> {
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        paths.add(Path.of(args[i]));
+                    }
+                }
+            }
+            if (paths.isEmpty()) {
+                throw new IllegalArgumentException("No files given");
+            }
+            if (chunkSizeMb < 1 || chunkSizeMb > 1024) {
+                throw new IllegalArgumentException("--chunk-size-mb must be between 1 and 1024");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        boolean success;
+        try (ClickHouseRepository repository = new ClickHouseRepository()) {
+            if (table == null) {
+                table = LdvSettings.current().clickHouse().table();
+            }
+            repository.ensureSchema();
+            success = new BulkLoader(repository, table, format, layout, threads, chunkSizeMb * 1024 * 1024, retries,
+                    TimeUnit.SECONDS.toMillis(progressIntervalSeconds)).load(paths);
+        } catch (ConfigurationException | IOException e) {
+            LOGGER.log(Level.SEVERE, "Bulk load failed", e);
+            System.exit(2);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.SEVERE, "Bulk load interrupted");
+            System.exit(1);
+            return;
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Loads the given files, and the matching files in the given directories, into the table.
+     *
+     * @param paths files and directories
+     * @return {@code true} if every chunk was loaded
+     * @throws IOException          if a file cannot be listed, opened or mapped
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public boolean load(List<Path> paths) throws IOException, InterruptedException {
+        List<Path> files = expand(paths);
+        totalBytes = 0;
+        for (Path file : files) {
+            totalBytes += Files.size(file);
+        }
+        LOGGER.log(Level.INFO, "Loading {0} files, {1} MB, into {2} with {3} threads",
+                new Object[]{files.size(), totalBytes / (1024 * 1024), table, threads});
+
+        AtomicInteger workerIndex = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ldv-bulk-loader-" + workerIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ldv-bulk-loader-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore mapped = new Semaphore(threads * 2);
+        startNanos = System.nanoTime();
+        progress.scheduleAtFixedRate(this::reportProgress, progressIntervalMillis, progressIntervalMillis, TimeUnit.MILLISECONDS);
+        try {
+            for (Path file : files) {
+                if (formatOf(file) == ClickHouseFormat.RowBinary) {
+                    mapped.acquire();
+                    workers.execute(() -> {
+                        try {
+                            loadRowBinary(file);
+                        } finally {
+                            mapped.release();
+                        }
+                    });
+                } else {
+                    submitChunks(file, workers, mapped);
+                }
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            workers.shutdownNow();
+            progress.shutdownNow();
+        }
+        reportProgress();
+        if (failedChunks.get() > 0) {
+            LOGGER.log(Level.SEVERE, "{0} chunks could not be loaded, see the errors above", failedChunks.get());
+        }
+        return failedChunks.get() == 0;
+    }
+
+    private void submitChunks(Path file, ExecutorService workers, Semaphore mapped) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                mapped.acquire();
+                ByteBuffer chunk;
+                try {
+                    chunk = nextChunk(channel, position, size);
+                } catch (IOException | RuntimeException e) {
+                    mapped.release();
+                    throw e;
+                }
+                if (chunk == null) {
+                    mapped.release();
+                    LOGGER.log(Level.SEVERE, "Line at offset " + position + " of " + file + " is too long, skipping the rest of the file");
+                    failedChunks.incrementAndGet();
+                    return;
+                }
+                long offset = position;
+                workers.execute(() -> {
+                    try {
+                        loadChunk(file, offset, chunk);
+                    } finally {
+                        mapped.release();
+                    }
+                });
+                position += chunk.remaining();
+            }
+        }
+    }
+
+    /**
+     * Maps the next chunk of an NDJSON file, ending at the last line break within the chunk size.
+     * A line longer than the chunk size gets a chunk of its own.
+     *
+     * @return the chunk, or {@code null} if no line break follows within {@link #MAX_CHUNK_BYTES}
+     */
+    ByteBuffer nextChunk(FileChannel channel, long position, long size) throws IOException {
+        long length = Math.min(chunkSize, size - position);
+        while (true) {
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length == size) {
+                return region;
+            }
+            for (int i = (int) length - 1; i >= 0; i--) {
+                if (region.get(i) == '\n') {
+                    return region.slice(0, i + 1);
+                }
+            }
+            if (length >= MAX_CHUNK_BYTES) {
+                return null;
+            }
+            length = Math.min(length * 2, size - position);
+        }
+    }
+
+    private void loadChunk(Path file, long offset, ByteBuffer chunk) {
+        long rows = countRows(chunk);
+        boolean loaded = withRetries(file, offset, chunk.remaining(),
+                () -> repository.insert(table, chunk.duplicate(), ClickHouseFormat.JSONEachRow));
+        if (loaded) {
+            loadedBytes.addAndGet(chunk.remaining());
+            loadedRows.addAndGet(rows);
+        }
+    }
+
+    private void loadRowBinary(Path file) {
+        ByteBuffer payload;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_CHUNK_BYTES) {
+                throw new IOException("File is larger than " + MAX_CHUNK_BYTES + " bytes and cannot be inserted in one request");
+            }
+            payload = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to read " + file, e);
+            failedChunks.incrementAndGet();
+            return;
+        }
+        RowBinaryLayout fileLayout = layoutOf(file);
+        boolean loaded = withRetries(file, 0, payload.remaining(),
+                () -> repository.insert(table, payload.duplicate(), ClickHouseFormat.RowBinary, fileLayout));
+        if (loaded) {
+            loadedBytes.addAndGet(payload.remaining());
+        }
+    }
+
+    private boolean withRetries(Path file, long offset, long length, Runnable insert) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                insert.run();
+                return true;
+            } catch (RuntimeException e) {
+                if (attempt >= retries) {
+                    LOGGER.log(Level.SEVERE, "Failed to load " + length + " bytes at offset " + offset + " of " + file, e);
+                    failedChunks.incrementAndGet();
+                    return false;
+                }
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, 1000L << attempt);
+                LOGGER.log(Level.WARNING, "Failed to load offset " + offset + " of " + file + ", retrying in " + backoff + " ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    failedChunks.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void reportProgress() {
+        long bytes = loadedBytes.get();
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        double bytesPerSecond = bytes / seconds;
+        long etaSeconds = bytesPerSecond > 0 ? (long) ((totalBytes - bytes) / bytesPerSecond) : -1;
+        LOGGER.log(Level.INFO, String.format(Locale.ROOT, "Loaded %d of %d MB (%.1f%%), %d rows, %.1f MB/s, %d failed chunks, ETA %s",
+                bytes / (1024 * 1024), totalBytes / (1024 * 1024), totalBytes == 0 ? 100.0 : 100.0 * bytes / totalBytes,
+                loadedRows.get(), bytesPerSecond / (1024 * 1024), failedChunks.get(),
+                etaSeconds < 0 ? "unknown" : etaSeconds + " s"));
+    }
+
+    private List<Path> expand(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> stream = Files.list(path)) {
+                    stream.filter(Files::isRegularFile)
+                            .filter(file -> hasExtension(file, ".ndjson", ".jsonl", ".rowbinary"))
+                            .sorted()
+                            .forEach(files::add);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private ClickHouseFormat formatOf(Path file) {
+        if (format != null) {
+            return format;
+        }
+        return hasExtension(file, ".rowbinary") ? ClickHouseFormat.RowBinary : ClickHouseFormat.JSONEachRow;
+    }
+
+    private RowBinaryLayout layoutOf(Path file) {
+        if (layout != null) {
+            return layout;
+        }
+        for (RowBinaryLayout candidate : RowBinaryLayout.values()) {
+            if (hasExtension(file, "." + candidate.label() + ".rowbinary")) {
+                return candidate;
+            }
+        }
+        return RowBinaryLayout.CURRENT;
+    }
+
+    private static boolean hasExtension(Path file, String... extensions) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : extensions) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long countRows(ByteBuffer chunk) {
+        long rows = 0;
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit; i++) {
+            if (chunk.get(i) == '\n') {
+                rows++;
+            }
+        }
+        if (limit > chunk.position() && chunk.get(limit - 1) != '\n') {
+            rows++;
+        }
+        return rows;
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static ClickHouseFormat format(String value) {
+        for (ClickHouseFormat format : new ClickHouseFormat[]{ClickHouseFormat.JSONEachRow, ClickHouseFormat.RowBinary}) {
+            if (format.name().equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported format " + value);
+    }
+}
@@ -37,4 +37,13 @@ public @interface Logboek {
     @Nonbinding
     String processingActivityId() default "";
 
+    /**
+     * Name of the pipeline that exports the span, configured under
+     * {@code logboekdataverwerking.pipeline.<name>.*}. Empty for the default pipeline.
+     *
+     * @return pipeline name
+     */
+    @Nonbinding
+    String pipeline() default "";
+
 }
@@ -0,0 +1,78 @@
+package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+
+/**
+ * Pre-built {@link AttributeKey}s of the Logboek Dataverwerkingen span attributes.
+ * <p>
+ * Using these constants avoids creating a key for every attribute that is set, and
+ * {@link #of(String, String, String)} builds the Logboek attributes of a span in one go.
+ */
+public final class LogboekAttributes {
+
+    /**
+     * Reference to the processing activity in the register.
+     */
+    public static final AttributeKey<String> PROCESSING_ACTIVITY_ID = AttributeKey.stringKey("dpl.core.processing_activity_id");
+
+    /**
+     * Identifier of the data subject, e.g. a BSN.
+     */
+    public static final AttributeKey<String> DATA_SUBJECT_ID = AttributeKey.stringKey("dpl.core.data_subject_id");
+
+    /**
+     * Type of the data subject identifier, e.g. {@code BSN}.
+     */
+    public static final AttributeKey<String> DATA_SUBJECT_ID_TYPE = AttributeKey.stringKey("dpl.core.data_subject_id_type");
+
+    /**
+     * Span id of the processing in the calling organisation.
+     */
+    public static final AttributeKey<String> FOREIGN_OPERATION_SPAN_ID = AttributeKey.stringKey("dpl.core.foreign_operation.span_id");
+
+    /**
+     * Processor of the calling organisation.
+     */
+    public static final AttributeKey<String> FOREIGN_OPERATION_PROCESSOR = AttributeKey.stringKey("dpl.core.foreign_operation.processor");
+
+    private LogboekAttributes() {
+    }
+
+    /**
+     * Builds the Logboek attributes of a span. {@code null} and empty values are left out, so unset
+     * fields do not end up as empty attributes.
+     *
+     * @param processingActivityId the processing activity identifier
+     * @param dataSubjectId        the data subject identifier
+     * @param dataSubjectType      the type of the data subject identifier
+     * @return the attributes, possibly empty
+     */
+    public static Attributes of(String processingActivityId, String dataSubjectId, String dataSubjectType) {
+        AttributesBuilder attributes = Attributes.builder();
+        putIfSet(attributes, PROCESSING_ACTIVITY_ID, processingActivityId);
+        putIfSet(attributes, DATA_SUBJECT_ID, dataSubjectId);
+        putIfSet(attributes, DATA_SUBJECT_ID_TYPE, dataSubjectType);
+        return attributes.build();
+    }
+
+    /**
+     * Tells whether a span is a processing record, i.e. carries a processing activity id, as opposed
+     * to a technical span.
+     *
+     * @param span the span
+     * @return {@code true} if the span has a non-empty {@code dpl.core.processing_activity_id}
+     */
+    public static boolean isProcessingRecord(ReadableSpan span) {
+        String activity = span.getAttribute(PROCESSING_ACTIVITY_ID);
+        return activity != null && !activity.isEmpty();
+    }
+
+    private static void putIfSet(AttributesBuilder attributes, AttributeKey<String> key, String value) {
+        if (value != null && !value.isEmpty()) {
+            attributes.put(key, value);
+        }
+    }
+}
@@ -80,4 +80,14 @@ public class LogboekContext {
         this.status = status;
     }
 
+    /**
+     * Called through the client proxy, returns the contextual instance of the current request
+     * itself, which stays readable after the request scope has ended on this thread.
+     *
+     * @return this instance
+     */
+    LogboekContext self() {
+        return this;
+    }
+
 }
@@ -0,0 +1,154 @@
+package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
+
+import io.opentelemetry.context.Context;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the OpenTelemetry {@link Context} and the Logboek fields of the submitting thread to
+ * tasks that run on other threads.
+ * <p>
+ * The request-scoped {@link LogboekContext} and the thread-local current span are not visible on
+ * virtual threads or executor pools, so child spans would lose their parent and the data subject.
+ * The wrappers below capture both when a task is submitted and make them current while it runs.
+ * Inside the task, {@link Logboek} methods and {@link ProcessingHandler#startSpan} pick up the parent
+ * span automatically and {@link LogboekSnapshot#current()} returns the inherited fields.
+ * <p>
+ * A {@link LogboekContext} passed to these methods may be a CDI client proxy; it is only read on the
+ * submitting thread. When that thread itself runs a propagated task, the inherited snapshot is
+ * forwarded instead.
+ * <pre>{@code
+ * ExecutorService executor = LogboekContextPropagation.wrap(Executors.newVirtualThreadPerTaskExecutor(), logboekContext);
+ *
+ * try (var scope = new StructuredTaskScope.ShutdownOnFailure("lookup",
+ *         LogboekContextPropagation.threadFactory(Thread.ofVirtual().factory(), logboekContext))) {
+ *     ...
+ * }
+ * }</pre>
+ */
+public final class LogboekContextPropagation {
+
+    private LogboekContextPropagation() {
+    }
+
+    /**
+     * Captures the current context. Only reads the request-scoped context when no snapshot was inherited.
+     *
+     * @param logboekContext the request-scoped context of the submitting thread
+     * @return the OpenTelemetry context to make current in the task
+     */
+    public static Context capture(LogboekContext logboekContext) {
+        Context context = Context.current();
+        if (LogboekSnapshot.fromContext(context) != null) {
+            return context;
+        }
+        return context.with(LogboekSnapshot.of(logboekContext));
+    }
+
+    /**
+     * @param task           the task to wrap
+     * @param logboekContext the request-scoped context of the submitting thread
+     * @return a task that runs with the context captured now
+     */
+    public static Runnable wrap(Runnable task, LogboekContext logboekContext) {
+        return capture(logboekContext).wrap(task);
+    }
+
+    /**
+     * @param task           the task to wrap
+     * @param logboekContext the request-scoped context of the submitting thread
+     * @param <T>            the result type
+     * @return a task that runs with the context captured now
+     */
+    public static <T> Callable<T> wrap(Callable<T> task, LogboekContext logboekContext) {
+        return capture(logboekContext).wrap(task);
+    }
+
+    /**
+     * Wraps an executor, for example to pass to {@link java.util.concurrent.CompletableFuture#supplyAsync}.
+     * The context is captured each time a task is submitted.
+     *
+     * @param executor       the executor to delegate to
+     * @param logboekContext the request-scoped context, usually a CDI client proxy
+     * @return the wrapping executor
+     */
+    public static Executor wrap(Executor executor, LogboekContext logboekContext) {
+        return task -> executor.execute(wrap(task, logboekContext));
+    }
+
+    /**
+     * Wraps an executor service. The context is captured each time a task is submitted, and the
+     * lifecycle methods are delegated.
+     *
+     * @param executor       the executor service to delegate to
+     * @param logboekContext the request-scoped context, usually a CDI client proxy
+     * @return the wrapping executor service
+     */
+    public static ExecutorService wrap(ExecutorService executor, LogboekContext logboekContext) {
+        return new PropagatingExecutorService(executor, logboekContext);
+    }
+
+    /**
+     * Wraps a thread factory, for use with {@code StructuredTaskScope} whose subtasks are started
+     * from the owner thread. The context is captured each time a thread is created.
+     *
+     * @param threadFactory  the thread factory to delegate to, e.g. {@code Thread.ofVirtual().factory()}
+     * @param logboekContext the request-scoped context, usually a CDI client proxy
+     * @return the wrapping thread factory
+     */
+    public static ThreadFactory threadFactory(ThreadFactory threadFactory, LogboekContext logboekContext) {
+        return task -> threadFactory.newThread(wrap(task, logboekContext));
+    }
+
+    /**
+     * {@link ExecutorService} that wraps every task on submission. {@link AbstractExecutorService}
+     * routes {@code submit} and {@code invokeAll}/{@code invokeAny} through {@link #execute} on the
+     * calling thread, so wrapping there captures the caller's context.
+     */
+    private static final class PropagatingExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final LogboekContext logboekContext;
+
+        PropagatingExecutorService(ExecutorService delegate, LogboekContext logboekContext) {
+            this.delegate = delegate;
+            this.logboekContext = logboekContext;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(wrap(command, logboekContext));
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
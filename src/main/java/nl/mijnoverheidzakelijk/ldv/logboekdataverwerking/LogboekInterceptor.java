@@ -1,17 +1,27 @@
 package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
 
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
 import io.opentelemetry.context.propagation.TextMapGetter;
-import io.opentelemetry.sdk.trace.ReadableSpan;
-import io.opentelemetry.sdk.trace.data.SpanData;
 import jakarta.inject.Inject;
 import jakarta.interceptor.AroundInvoke;
 import jakarta.interceptor.Interceptor;
 import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.CompletionCallback;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.HttpHeaders;
 
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
 /**
  * CDI interceptor that surrounds methods annotated with {@link Logboek} and creates
  * an OpenTelemetry span.
@@ -19,11 +29,24 @@ import jakarta.ws.rs.core.HttpHeaders;
  * It extracts an existing trace context from inbound HTTP headers
  * (if present) using the W3C Trace Context format and enriches the span with Logboek
  * attributes before ending it.
+ * <p>
+ * The annotation of each intercepted method is resolved once and cached, and the inbound
+ * headers are only parsed when a {@code traceparent} header is present.
+ * <p>
+ * On threads started through {@link LogboekContextPropagation} there is no active request scope;
+ * the span is then parented to the propagated context and enriched from the inherited
+ * {@link LogboekSnapshot}.
  */
 @Logboek
 @Interceptor
 public class LogboekInterceptor {
 
+    private static final String TRACEPARENT = "traceparent";
+    private static final String TRACEPARENT_PROCESSOR = "traceparent-processor";
+
+    private static final Map<Method, LogboekMethod> METHODS = new ConcurrentHashMap<>();
+    private static final boolean MUTINY = isPresent("io.smallrye.mutiny.Uni");
+
     @Inject
     LogboekContext logboekContext;
 
@@ -38,6 +61,11 @@ public class LogboekInterceptor {
      * Starts a span, proceeds with the intercepted invocation, and finalizes the span
      * with any Logboek context attributes. If an exception occurs, the span status is
      * marked with StatusCode error and the exception is rethrown.
+     * <p>
+     * For asynchronous methods the span is finalized when the work completes instead: when the
+     * method returns a {@link CompletionStage} or a Mutiny {@code Uni}/{@code Multi}, or takes a
+     * {@link Suspended} {@link AsyncResponse}. A Mutiny result is replaced by a copy that ends the
+     * span on termination; the span is only ended once it is subscribed to.
      *
      * @param context the invocation context
      * @return the result of the intercepted method
@@ -46,48 +74,209 @@ public class LogboekInterceptor {
     @AroundInvoke
     public Object log(InvocationContext context) throws Exception {
 
-        var propagatorInstance = W3CTraceContextPropagator.getInstance();
-        io.opentelemetry.context.Context traceContext = propagatorInstance.extract(
-                io.opentelemetry.context.Context.current(), 
-                headers, 
-                new HttpHeadersGetter()
-        );
+        LogboekMethod method = METHODS.computeIfAbsent(context.getMethod(), LogboekMethod::of);
+
+        LogboekSnapshot inherited = LogboekSnapshot.current();
+        if (inherited != null) {
+            return logPropagated(context, method, inherited);
+        }
+
+        String traceparent = headers.getHeaderString(TRACEPARENT);
+        io.opentelemetry.context.Context traceContext = null;
+        if (traceparent != null) {
+            traceContext = W3CTraceContextPropagator.getInstance().extract(
+                    io.opentelemetry.context.Context.current(),
+                    headers,
+                    HttpHeadersGetter.INSTANCE
+            );
+        }
 
-        Logboek annotation = context.getMethod().getAnnotation(Logboek.class);
-        String name = annotation.name();
-        String processingActivityId = annotation.processingActivityId();
+        // the processing activity is set up front so spans started inside the method can see it
+        Span span = handler.startSpan(method.pipeline(), method.name(), traceContext, method.startAttributes());
 
-        Span span = handler.startSpan(name, traceContext);
+        if (traceparent != null) {
+            //todo hoe krijgen we de url, bijv. header. Hier is het team van LDV nog mee bezig.
+            //todo How do we get the url, ex. header. This is still being worked on by the LDV team.
+            AttributesBuilder foreignOperation = Attributes.builder()
+                    .put(LogboekAttributes.FOREIGN_OPERATION_SPAN_ID, Span.fromContext(traceContext).getSpanContext().getSpanId());
+            String processor = headers.getHeaderString(TRACEPARENT_PROCESSOR);
+            if (processor != null) {
+                foreignOperation.put(LogboekAttributes.FOREIGN_OPERATION_PROCESSOR, processor);
+            }
+            span.setAllAttributes(foreignOperation.build());
+        }
 
+        boolean async = false;
         try (var ignored = span.makeCurrent()) {
-            return context.proceed();
+            Object result = context.proceed();
+            if (isAsync(result, method)) {
+                // the injected field is a client proxy that resolves against the request of the
+                // completing thread, so the instance of this request is captured here
+                LogboekContext requestContext = logboekContext.self();
+                Object completion = onCompletion(result, context, method, failure -> endAsync(span, method, requestContext, failure));
+                // only now the completion callback is in place to end the span
+                async = true;
+                return completion;
+            }
+            return result;
         } catch (IllegalArgumentException | IllegalStateException e) {
             span.setStatus(io.opentelemetry.api.trace.StatusCode.ERROR);
             throw e;
         }
         finally {
-            SpanData spanData = ((ReadableSpan) span).toSpanData();
+            if (!async) {
+                logboekContext.setProcessingActivityId(method.processingActivityId());
+                handler.addLogboekContextToSpan(span, logboekContext);
+                span.end();
+            }
+        }
+    }
 
-            if (headers.getHeaderString("traceparent") != null) {
-                span.setAttribute("dpl.core.foreign_operation.span_id", spanData.getParentSpanId());
+    /**
+     * Variant of {@link #log} for propagated tasks: the parent span comes from the current
+     * context and the Logboek fields from the inherited snapshot.
+     */
+    private Object logPropagated(InvocationContext context, LogboekMethod method, LogboekSnapshot inherited) throws Exception {
+        Span span = handler.startSpan(method.pipeline(), method.name(), null, method.startAttributes());
+        LogboekSnapshot snapshot = inherited.withProcessingActivityId(method.processingActivityId());
+        boolean async = false;
+        try (var ignored = span.makeCurrent()) {
+            Object result = context.proceed();
+            if (isAsync(result, method)) {
+                Object completion = onCompletion(result, context, method, failure -> {
+                    if (failure != null) {
+                        span.setStatus(io.opentelemetry.api.trace.StatusCode.ERROR);
+                    }
+                    handler.addLogboekContextToSpan(span, snapshot);
+                    span.end();
+                });
+                async = true;
+                return completion;
+            }
+            return result;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            span.setStatus(io.opentelemetry.api.trace.StatusCode.ERROR);
+            throw e;
+        } finally {
+            if (!async) {
+                handler.addLogboekContextToSpan(span, snapshot);
+                span.end();
+            }
+        }
+    }
+
+    private static boolean isAsync(Object result, LogboekMethod method) {
+        return method.asyncResponseIndex() >= 0
+                || result instanceof CompletionStage<?>
+                || (MUTINY && MutinySpanCompletion.isReactive(result));
+    }
 
-                //todo hoe krijgen we de url, bijv. header. Hier is het team van LDV nog mee bezig.
-                //todo How do we get the url, ex. header. This is still being worked on by the LDV team.
-                span.setAttribute("dpl.core.foreign_operation.processor", headers.getHeaderString("traceparent-processor"));
+    /**
+     * Arranges for {@code onDone} to run once the asynchronous work of an invocation finishes. If
+     * this throws, {@code onDone} has not been arranged and the caller must end the span itself.
+     * <p>
+     * An {@link AsyncResponse} that the method already resumed may never call a callback registered
+     * afterwards, so {@code onDone} then runs right away; it runs at most once either way.
+     *
+     * @return the value to return from the interceptor
+     */
+    private static Object onCompletion(Object result, InvocationContext context, LogboekMethod method, Consumer<Throwable> onDone) {
+        if (method.asyncResponseIndex() >= 0) {
+            AsyncResponse asyncResponse = (AsyncResponse) context.getParameters()[method.asyncResponseIndex()];
+            AtomicBoolean done = new AtomicBoolean();
+            Consumer<Throwable> once = failure -> {
+                if (done.compareAndSet(false, true)) {
+                    onDone.accept(failure);
+                }
+            };
+            try {
+                asyncResponse.register((CompletionCallback) once::accept);
+            } catch (IllegalStateException e) {
+                if (!asyncResponse.isDone()) {
+                    throw e;
+                }
+            }
+            if (asyncResponse.isDone()) {
+                once.accept(null);
             }
+            return result;
+        }
+        if (result instanceof CompletionStage<?> stage) {
+            stage.whenComplete((ignored, failure) -> onDone.accept(failure));
+            return result;
+        }
+        return MutinySpanCompletion.onTermination(result, onDone);
+    }
 
-            logboekContext.setProcessingActivityId(processingActivityId);
-            handler.addLogboekContextToSpan(span, logboekContext);
+    /**
+     * Finalizes the span of an asynchronous invocation from the context instance of the request
+     * that invoked it. The completing thread may have no request scope, or serve another request,
+     * so the injected proxy is never used here.
+     */
+    private void endAsync(Span span, LogboekMethod method, LogboekContext requestContext, Throwable failure) {
+        if (failure != null) {
+            span.setStatus(io.opentelemetry.api.trace.StatusCode.ERROR);
+        }
+        try {
+            requestContext.setProcessingActivityId(method.processingActivityId());
+            handler.addLogboekContextToSpan(span, requestContext);
+        } finally {
             span.end();
         }
     }
 
+    /**
+     * Span name, processing activity and pipeline of an intercepted method, resolved once from its
+     * {@link Logboek} annotation, or from the declaring class if the method is not annotated itself,
+     * and the position of its {@link Suspended} {@link AsyncResponse} parameter, or {@code -1}.
+     * The attributes set when the span starts are built once as well.
+     */
+    private record LogboekMethod(String name, String processingActivityId, String pipeline, int asyncResponseIndex,
+                                 Attributes startAttributes) {
+
+        LogboekMethod(String name, String processingActivityId, String pipeline, int asyncResponseIndex) {
+            this(name, processingActivityId, pipeline, asyncResponseIndex, LogboekAttributes.of(processingActivityId, null, null));
+        }
+
+        static LogboekMethod of(Method method) {
+            int asyncResponseIndex = asyncResponseIndex(method);
+            Logboek annotation = method.getAnnotation(Logboek.class);
+            if (annotation == null) {
+                annotation = method.getDeclaringClass().getAnnotation(Logboek.class);
+            }
+            if (annotation == null) {
+                return new LogboekMethod("", "", "", asyncResponseIndex);
+            }
+            return new LogboekMethod(annotation.name(), annotation.processingActivityId(), annotation.pipeline(), asyncResponseIndex);
+        }
+
+        private static int asyncResponseIndex(Method method) {
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (AsyncResponse.class.isAssignableFrom(parameterTypes[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, LogboekInterceptor.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
 
     /**
      * Extracts header values for the OpenTelemetry propagator from {@link HttpHeaders}.
      */
     private static class HttpHeadersGetter implements TextMapGetter<HttpHeaders> {
 
+        static final HttpHeadersGetter INSTANCE = new HttpHeadersGetter();
+
         /**
          * @param httpHeaders the httpHeaders object
          * @return iterable of header names
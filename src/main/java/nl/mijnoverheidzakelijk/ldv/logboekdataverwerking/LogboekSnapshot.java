@@ -0,0 +1,65 @@
+package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
+
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.ContextKey;
+import io.opentelemetry.context.ImplicitContextKeyed;
+
+/**
+ * Immutable copy of a {@link LogboekContext} that can be carried in an OpenTelemetry
+ * {@link Context} to threads where the request scope is not active, such as virtual threads
+ * or {@link java.util.concurrent.CompletableFuture} pools.
+ * <p>
+ * Snapshots are normally taken and installed by {@link LogboekContextPropagation}; code running
+ * on such a thread reads the inherited values with {@link #current()}.
+ *
+ * @param processingActivityId the processing activity identifier
+ * @param dataSubjectId        the data subject identifier
+ * @param dataSubjectType      the type of the data subject identifier
+ * @param status               the span status to apply
+ */
+public record LogboekSnapshot(String processingActivityId, String dataSubjectId, String dataSubjectType,
+                              StatusCode status) implements ImplicitContextKeyed {
+
+    private static final ContextKey<LogboekSnapshot> KEY = ContextKey.named("logboekdataverwerking-snapshot");
+
+    /**
+     * Copies the current values of a request-scoped context.
+     *
+     * @param logboekContext the context to copy
+     * @return the snapshot
+     */
+    public static LogboekSnapshot of(LogboekContext logboekContext) {
+        return new LogboekSnapshot(logboekContext.getProcessingActivityId(), logboekContext.getDataSubjectId(),
+                logboekContext.getDataSubjectType(), logboekContext.getStatus());
+    }
+
+    /**
+     * @return the snapshot carried by the current OpenTelemetry context, or {@code null} if this
+     * thread did not inherit one
+     */
+    public static LogboekSnapshot current() {
+        return fromContext(Context.current());
+    }
+
+    /**
+     * @param context the OpenTelemetry context
+     * @return the snapshot carried by the given context, or {@code null} if it has none
+     */
+    public static LogboekSnapshot fromContext(Context context) {
+        return context.get(KEY);
+    }
+
+    /**
+     * @param processingActivityId the processing activity identifier
+     * @return a copy of this snapshot with the given processing activity
+     */
+    public LogboekSnapshot withProcessingActivityId(String processingActivityId) {
+        return new LogboekSnapshot(processingActivityId, dataSubjectId, dataSubjectType, status);
+    }
+
+    @Override
+    public Context storeInContext(Context context) {
+        return context.with(KEY, this);
+    }
+}
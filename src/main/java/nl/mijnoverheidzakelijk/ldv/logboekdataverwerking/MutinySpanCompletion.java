@@ -0,0 +1,39 @@
+package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+
+import java.util.function.Consumer;
+
+/**
+ * Defers the end of a Logboek span until a Mutiny {@link Uni} or {@link Multi} terminates.
+ * Only used when Mutiny is on the classpath, see {@link LogboekInterceptor}.
+ */
+final class MutinySpanCompletion {
+
+    private MutinySpanCompletion() {
+    }
+
+    /**
+     * @param result the value returned by the intercepted method
+     * @return whether the result is a Mutiny type
+     */
+    static boolean isReactive(Object result) {
+        return result instanceof Uni<?> || result instanceof Multi<?>;
+    }
+
+    /**
+     * Returns a copy of the given Uni or Multi that calls {@code onDone} when it completes, fails or is
+     * cancelled. Mutiny types are lazy, so the returned instance must replace the original.
+     *
+     * @param result the Uni or Multi returned by the intercepted method
+     * @param onDone called with the failure, or {@code null} on completion or cancellation
+     * @return the instance to return to the caller
+     */
+    static Object onTermination(Object result, Consumer<Throwable> onDone) {
+        if (result instanceof Uni<?> uni) {
+            return uni.onTermination().invoke((item, failure, cancelled) -> onDone.accept(failure));
+        }
+        return ((Multi<?>) result).onTermination().invoke((failure, cancelled) -> onDone.accept(failure));
+    }
+}
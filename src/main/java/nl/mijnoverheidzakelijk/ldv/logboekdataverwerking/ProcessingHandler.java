@@ -1,23 +1,33 @@
 package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
 
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Context;
 import jakarta.enterprise.context.ApplicationScoped;
-import nl.mijnoverheidzakelijk.ldv.config.ConfigurationLoader;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
 import nl.mijnoverheidzakelijk.ldv.config.TelemetryConfig;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 
 /**
  * Handles creation and enrichment of OpenTelemetry spans used by the Logboek
  * interceptor flow.
+ * <p>
+ * Spans of the default pipeline are created with a tracer acquired up front. The tracer of a
+ * named pipeline, see {@link Logboek#pipeline()}, is acquired when it is first used.
  */
 @ApplicationScoped
 public class ProcessingHandler {
 
     private final Tracer tracer;
+    private final Map<String, Tracer> pipelineTracers = new ConcurrentHashMap<>();
 
     /**
      * Initializes the handler by configuring OpenTelemetry and acquiring a tracer
@@ -27,7 +37,7 @@ public class ProcessingHandler {
      */
     public ProcessingHandler() {
         try {
-            String serviceName = ConfigurationLoader.getValueByKey("logboekdataverwerking.service-name", String.class);
+            String serviceName = LdvSettings.require(LdvSettings.current().serviceName(), "service-name");
 
             OpenTelemetry openTelemetry = TelemetryConfig.initOpenTelemetry(serviceName);
             this.tracer = openTelemetry.getTracer(serviceName);
@@ -36,6 +46,15 @@ public class ProcessingHandler {
         }
     }
 
+    /**
+     * Creates a handler that starts the spans of the default pipeline with the given tracer.
+     *
+     * @param tracer the tracer of the default pipeline
+     */
+    ProcessingHandler(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
     /**
      * Starts a new span with the given name, optionally using an existing parent context.
      *
@@ -44,27 +63,81 @@ public class ProcessingHandler {
      * @return the started span
      */
     public Span startSpan(String name, Context context) {
+        return startSpan(name, context, Attributes.empty());
+    }
+
+    /**
+     * Starts a new span with the given name and initial attributes, optionally using an existing
+     * parent context. Attributes set at start are visible to span processors from the beginning.
+     *
+     * @param name       the span name
+     * @param context    the parent context may be null
+     * @param attributes the initial attributes, e.g. a pre-built {@link LogboekAttributes} set
+     * @return the started span
+     */
+    public Span startSpan(String name, Context context, Attributes attributes) {
+        return startSpan("", name, context, attributes);
+    }
 
+    /**
+     * Starts a new span in the given pipeline, see {@link #startSpan(String, Context, Attributes)}.
+     *
+     * @param pipeline   the pipeline name, empty for the default pipeline
+     * @param name       the span name
+     * @param context    the parent context may be null
+     * @param attributes the initial attributes
+     * @return the started span
+     * @throws RuntimeException if the pipeline is not configured or cannot be initialized
+     */
+    public Span startSpan(String pipeline, String name, Context context, Attributes attributes) {
+        SpanBuilder builder = (pipeline.isEmpty() ? tracer : pipelineTracers.computeIfAbsent(pipeline, ProcessingHandler::pipelineTracer))
+                .spanBuilder(name);
         if (context != null) {
-            return tracer.spanBuilder(name)
-                    .setParent(context)
-                    .startSpan();
+            builder.setParent(context);
+        }
+        if (!attributes.isEmpty()) {
+            builder.setAllAttributes(attributes);
         }
+        return builder.startSpan();
+    }
 
-        return tracer.spanBuilder(name)
-                .startSpan();
+    private static Tracer pipelineTracer(String pipeline) {
+        try {
+            String serviceName = LdvSettings.require(LdvSettings.current().pipeline(pipeline).serviceName(), "service-name");
+            return TelemetryConfig.initPipeline(pipeline).getTracer(serviceName);
+        } catch (ConfigurationException e) {
+            throw new RuntimeException("Failed to initialize Logboek pipeline " + pipeline, e);
+        }
     }
 
     /**
-     * Adds Logboek context attributes and status to the given span.
+     * Adds Logboek context attributes and status to the given span. Unset fields are skipped.
      *
      * @param span           the span to enrich
      * @param logboekContext the context holding attributes
      */
     public void addLogboekContextToSpan(Span span, LogboekContext logboekContext) {
-        span.setAttribute("dpl.core.processing_activity_id", logboekContext.getProcessingActivityId());
-        span.setAttribute("dpl.core.data_subject_id", logboekContext.getDataSubjectId());
-        span.setAttribute("dpl.core.data_subject_id_type", logboekContext.getDataSubjectType());
-        span.setStatus(logboekContext.getStatus());
+        apply(span, LogboekAttributes.of(logboekContext.getProcessingActivityId(), logboekContext.getDataSubjectId(),
+                logboekContext.getDataSubjectType()), logboekContext.getStatus());
+    }
+
+    /**
+     * Adds the Logboek attributes and status of a snapshot inherited from another thread to the given span.
+     *
+     * @param span     the span to enrich
+     * @param snapshot the inherited snapshot, see {@link LogboekSnapshot#current()}
+     */
+    public void addLogboekContextToSpan(Span span, LogboekSnapshot snapshot) {
+        apply(span, LogboekAttributes.of(snapshot.processingActivityId(), snapshot.dataSubjectId(),
+                snapshot.dataSubjectType()), snapshot.status());
+    }
+
+    private static void apply(Span span, Attributes attributes, StatusCode status) {
+        if (!attributes.isEmpty()) {
+            span.setAllAttributes(attributes);
+        }
+        if (status != null) {
+            span.setStatus(status);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,276 @@
+package nl.mijnoverheidzakelijk.ldv.metrics;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.MeterProvider;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Self-observability of the span export pipeline.
+ * <p>
+ * Every measurement is recorded both as an OpenTelemetry instrument on the given {@link Meter}
+ * and in plain counters that back the {@link LdvMetricsMXBean} JMX view:
+ * <ul>
+ *     <li>{@code ldv.export.duration}: insert latency histogram, by {@code success}</li>
+ *     <li>{@code ldv.export.rows} and {@code ldv.export.bytes}: rows and payload bytes per insert</li>
+ *     <li>{@code ldv.serialization.duration}: time to encode a batch</li>
+ *     <li>{@code ldv.export.in_flight}: inserts currently outstanding</li>
+ *     <li>{@code ldv.export.failures}: failed inserts</li>
+ *     <li>{@code ldv.spans.dropped}: spans discarded by the exporter, by {@code reason}</li>
+ *     <li>{@code ldv.spans.sampled_out}: technical spans not exported because of the sampling policy</li>
+ *     <li>{@code ldv.spool.size}: bytes held by the on-disk spool</li>
+ * </ul>
+ */
+public final class LdvMetrics implements LdvMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(LdvMetrics.class.getName());
+
+    private static final AttributeKey<Boolean> SUCCESS = AttributeKey.booleanKey("success");
+    private static final AttributeKey<String> REASON = AttributeKey.stringKey("reason");
+    private static final Attributes SUCCEEDED = Attributes.of(SUCCESS, true);
+    private static final Attributes FAILED = Attributes.of(SUCCESS, false);
+
+    private final DoubleHistogram exportDuration;
+    private final LongHistogram exportRows;
+    private final LongHistogram exportBytes;
+    private final DoubleHistogram serializationDuration;
+    private final LongCounter failures;
+    private final LongCounter dropped;
+    private final LongCounter sampledOut;
+
+    private final LongAdder insertCount = new LongAdder();
+    private final LongAdder failedInsertCount = new LongAdder();
+    private final LongAdder exportedRows = new LongAdder();
+    private final LongAdder exportedBytes = new LongAdder();
+    private final LongAdder totalInsertNanos = new LongAdder();
+    private final AtomicLong maxInsertNanos = new AtomicLong();
+    private final LongAdder totalSerializationNanos = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder droppedSpans = new LongAdder();
+    private final LongAdder sampledOutSpans = new LongAdder();
+
+    private volatile LongSupplier queueDroppedSpans = () -> 0;
+    private volatile LongSupplier spoolSize = () -> 0;
+
+    /**
+     * Creates the instruments on the given meter.
+     *
+     * @param meter the meter to register the instruments with
+     */
+    public LdvMetrics(Meter meter) {
+        this.exportDuration = meter.histogramBuilder("ldv.export.duration")
+                .setDescription("Duration of span inserts into ClickHouse")
+                .setUnit("ms")
+                .build();
+        this.exportRows = meter.histogramBuilder("ldv.export.rows")
+                .setDescription("Rows per insert")
+                .ofLongs()
+                .build();
+        this.exportBytes = meter.histogramBuilder("ldv.export.bytes")
+                .setDescription("Payload bytes per insert")
+                .setUnit("By")
+                .ofLongs()
+                .build();
+        this.serializationDuration = meter.histogramBuilder("ldv.serialization.duration")
+                .setDescription("Duration of encoding a span batch")
+                .setUnit("ms")
+                .build();
+        this.failures = meter.counterBuilder("ldv.export.failures")
+                .setDescription("Failed span inserts")
+                .build();
+        this.dropped = meter.counterBuilder("ldv.spans.dropped")
+                .setDescription("Spans discarded by the exporter")
+                .build();
+        this.sampledOut = meter.counterBuilder("ldv.spans.sampled_out")
+                .setDescription("Technical spans not exported because of the sampling policy")
+                .build();
+        meter.upDownCounterBuilder("ldv.export.in_flight")
+                .setDescription("Span inserts currently in flight")
+                .buildWithCallback(measurement -> measurement.record(inFlight.get()));
+        meter.gaugeBuilder("ldv.spool.size")
+                .setDescription("Bytes held by the on-disk spool")
+                .setUnit("By")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(spoolSize.getAsLong()));
+    }
+
+    /**
+     * @return metrics that are only kept for JMX, without an OpenTelemetry backend
+     */
+    public static LdvMetrics noop() {
+        return new LdvMetrics(MeterProvider.noop().get(LdvMetrics.class.getPackageName()));
+    }
+
+    /**
+     * Registers this instance as a platform MXBean. Failures are logged and otherwise ignored.
+     *
+     * @param name value of the {@code name} key of the object name, e.g. the table name
+     */
+    public void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("nl.mijnoverheidzakelijk.ldv:type=Exporter,name=" + ObjectName.quote(name));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register exporter metrics MBean", e);
+        }
+    }
+
+    /**
+     * Records a finished insert.
+     *
+     * @param rows          number of rows in the insert, or a negative value if unknown
+     * @param bytes         payload size in bytes
+     * @param durationNanos time from sending to completion
+     * @param success       whether ClickHouse confirmed the insert
+     */
+    public void recordInsert(long rows, long bytes, long durationNanos, boolean success) {
+        insertCount.increment();
+        totalInsertNanos.add(durationNanos);
+        maxInsertNanos.accumulateAndGet(durationNanos, Math::max);
+        exportDuration.record(durationNanos / 1_000_000.0, success ? SUCCEEDED : FAILED);
+        if (success) {
+            if (rows >= 0) {
+                exportedRows.add(rows);
+                exportRows.record(rows);
+            }
+            exportedBytes.add(bytes);
+            exportBytes.record(bytes);
+        } else {
+            failedInsertCount.increment();
+            failures.add(1);
+        }
+    }
+
+    /**
+     * Records the time spent encoding a batch.
+     *
+     * @param durationNanos encoding time
+     */
+    public void recordSerialization(long durationNanos) {
+        totalSerializationNanos.add(durationNanos);
+        serializationDuration.record(durationNanos / 1_000_000.0);
+    }
+
+    /**
+     * Records spans discarded by the exporter.
+     *
+     * @param spans  number of spans
+     * @param reason short reason, e.g. {@code spool_full}
+     */
+    public void recordDropped(long spans, String reason) {
+        droppedSpans.add(spans);
+        dropped.add(spans, Attributes.of(REASON, reason));
+    }
+
+    /**
+     * Records a technical span that is not exported because of the sampling policy.
+     */
+    public void recordSampledOut() {
+        sampledOutSpans.increment();
+        sampledOut.add(1);
+    }
+
+    /**
+     * Marks the start of an insert.
+     */
+    public void insertStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of an insert started with {@link #insertStarted()}.
+     */
+    public void insertFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @param queueDroppedSpans source of the number of spans dropped by the span processor
+     */
+    public void setQueueDroppedSpans(LongSupplier queueDroppedSpans) {
+        this.queueDroppedSpans = queueDroppedSpans;
+    }
+
+    /**
+     * @param spoolSize source of the current spool size in bytes
+     */
+    public void setSpoolSize(LongSupplier spoolSize) {
+        this.spoolSize = spoolSize;
+    }
+
+    @Override
+    public long getInsertCount() {
+        return insertCount.sum();
+    }
+
+    @Override
+    public long getFailedInsertCount() {
+        return failedInsertCount.sum();
+    }
+
+    @Override
+    public long getExportedRows() {
+        return exportedRows.sum();
+    }
+
+    @Override
+    public long getExportedBytes() {
+        return exportedBytes.sum();
+    }
+
+    @Override
+    public long getTotalInsertTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalInsertNanos.sum());
+    }
+
+    @Override
+    public long getMaxInsertTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxInsertNanos.get());
+    }
+
+    @Override
+    public long getTotalSerializationTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalSerializationNanos.sum());
+    }
+
+    @Override
+    public int getInFlightInserts() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getDroppedSpans() {
+        return droppedSpans.sum();
+    }
+
+    @Override
+    public long getSampledOutSpans() {
+        return sampledOutSpans.sum();
+    }
+
+    @Override
+    public long getQueueDroppedSpans() {
+        return queueDroppedSpans.getAsLong();
+    }
+
+    @Override
+    public long getSpoolSizeBytes() {
+        return spoolSize.getAsLong();
+    }
+}
@@ -0,0 +1,68 @@
+package nl.mijnoverheidzakelijk.ldv.metrics;
+
+/**
+ * JMX view of the export pipeline metrics, for environments without an OpenTelemetry metrics
+ * backend. Registered under {@code nl.mijnoverheidzakelijk.ldv:type=Exporter}.
+ */
+public interface LdvMetricsMXBean {
+
+    /**
+     * @return number of completed inserts, successful or not
+     */
+    long getInsertCount();
+
+    /**
+     * @return number of failed inserts
+     */
+    long getFailedInsertCount();
+
+    /**
+     * @return number of rows confirmed by ClickHouse
+     */
+    long getExportedRows();
+
+    /**
+     * @return number of payload bytes confirmed by ClickHouse
+     */
+    long getExportedBytes();
+
+    /**
+     * @return total time spent waiting for inserts, in milliseconds
+     */
+    long getTotalInsertTimeMillis();
+
+    /**
+     * @return duration of the slowest insert since startup, in milliseconds
+     */
+    long getMaxInsertTimeMillis();
+
+    /**
+     * @return total time spent encoding batches, in milliseconds
+     */
+    long getTotalSerializationTimeMillis();
+
+    /**
+     * @return number of inserts currently in flight
+     */
+    int getInFlightInserts();
+
+    /**
+     * @return number of spans discarded by the exporter
+     */
+    long getDroppedSpans();
+
+    /**
+     * @return number of technical spans not exported because of the sampling policy
+     */
+    long getSampledOutSpans();
+
+    /**
+     * @return number of spans discarded by the span processor because its queue was full
+     */
+    long getQueueDroppedSpans();
+
+    /**
+     * @return current size of the on-disk spool in bytes, {@code 0} if no spool is used
+     */
+    long getSpoolSizeBytes();
+}
@@ -0,0 +1,246 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import com.clickhouse.client.api.Client;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ClickHouse replicas configured in {@code logboekdataverwerking.clickhouse.endpoint}, each with
+ * its own {@link Client}.
+ * <p>
+ * Requests are spread over the healthy nodes, either round-robin or to the node with the fewest
+ * requests in flight. A node is ejected after a number of consecutive failures to establish a
+ * connection to it, such as a refused connection or an unknown host; any other error, including
+ * errors reported by the server itself, does not count. Requests that time out while waiting for an answer are counted per node, but do not
+ * eject it: a busy server answers slowly on every node alike. Ejected nodes are pinged
+ * periodically and reinstated once they answer. When every node is ejected, all nodes are used
+ * again rather than failing outright.
+ */
+final class ClickHouseNodes implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ClickHouseNodes.class.getName());
+
+    /**
+     * How requests are spread over the healthy nodes.
+     */
+    enum Strategy {
+        ROUND_ROBIN,
+        LEAST_IN_FLIGHT;
+
+        static Strategy of(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * A single replica.
+     */
+    static final class Node {
+        final String endpoint;
+        final Client client;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong timeouts = new AtomicLong();
+        volatile boolean healthy = true;
+
+        Node(String endpoint, Client client) {
+            this.endpoint = endpoint;
+            this.client = client;
+        }
+    }
+
+    private final Node[] nodes;
+    private final Strategy strategy;
+    private final int ejectAfterFailures;
+    private final long pingTimeoutMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService healthChecker;
+
+    /**
+     * @param endpoints                 the endpoint urls, at least one
+     * @param clientFactory             creates the client of an endpoint
+     * @param strategy                  how to spread requests
+     * @param ejectAfterFailures        consecutive failures after which a node is ejected
+     * @param healthCheckIntervalMillis interval between pings of ejected nodes
+     */
+    ClickHouseNodes(List<String> endpoints, Function<String, Client> clientFactory, Strategy strategy,
+                    int ejectAfterFailures, long healthCheckIntervalMillis) {
+        this.nodes = endpoints.stream().map(endpoint -> new Node(endpoint, clientFactory.apply(endpoint))).toArray(Node[]::new);
+        this.strategy = strategy;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.pingTimeoutMillis = Math.max(1, healthCheckIntervalMillis / 2);
+        if (nodes.length > 1) {
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ldv-clickhouse-health-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.healthChecker.scheduleWithFixedDelay(this::checkEjected, healthCheckIntervalMillis,
+                    healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    /**
+     * @return the number of configured nodes
+     */
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Selects a node for the next request.
+     *
+     * @param exclude a node to skip if possible, e.g. the one that just failed; may be {@code null}
+     * @return the selected node
+     */
+    Node select(Node exclude) {
+        if (nodes.length == 1) {
+            return nodes[0];
+        }
+        Node selected = select(exclude, true);
+        if (selected == null) {
+            selected = select(exclude, false);
+        }
+        return selected != null ? selected : exclude;
+    }
+
+    private Node select(Node exclude, boolean healthyOnly) {
+        int start = Math.floorMod(next.getAndIncrement(), nodes.length);
+        Node selected = null;
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = nodes[(start + i) % nodes.length];
+            if (node == exclude || (healthyOnly && !node.healthy)) {
+                continue;
+            }
+            if (strategy == Strategy.ROUND_ROBIN) {
+                return node;
+            }
+            if (selected == null || node.inFlight.get() < selected.inFlight.get()) {
+                selected = node;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return a client for statements and queries
+     */
+    Client client() {
+        return select(null).client;
+    }
+
+    /**
+     * Records the outcome of a request on a node.
+     *
+     * @param node  the node that handled the request
+     * @param error the failure, or {@code null} on success
+     */
+    void record(Node node, Throwable error) {
+        if (error != null && isTimeout(error)) {
+            LOGGER.log(Level.WARNING, "Request on ClickHouse node {0} timed out, {1} timeouts so far",
+                    new Object[]{node.endpoint, node.timeouts.incrementAndGet()});
+            return;
+        }
+        if (error == null || !isNodeFailure(error)) {
+            node.failures.set(0);
+            return;
+        }
+        if (node.failures.incrementAndGet() >= ejectAfterFailures && node.healthy && nodes.length > 1) {
+            node.healthy = false;
+            LOGGER.log(Level.WARNING, "Ejecting ClickHouse node " + node.endpoint + " after repeated failures", error);
+        }
+    }
+
+    /**
+     * Only a failure to connect proves that the request never reached the node. After any other
+     * error the request may have been processed, so it is neither counted nor resent elsewhere.
+     *
+     * @param error a failure of a request
+     * @return whether no connection to the node could be established
+     */
+    static boolean isNodeFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException
+                    || cause instanceof NoRouteToHostException
+                    || (cause.getMessage() != null && cause.getMessage().contains("Connection refused"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param error a failure of a request
+     * @return whether the request was sent but no answer arrived in time
+     */
+    static boolean isTimeout(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param error a failure possibly wrapped by a future
+     * @return the underlying cause
+     */
+    static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Stops the health checks and closes the clients of all nodes.
+     */
+    @Override
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        for (Node node : nodes) {
+            try {
+                node.client.close();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to close ClickHouse client of " + node.endpoint, e);
+            }
+        }
+    }
+
+    private void checkEjected() {
+        for (Node node : nodes) {
+            if (node.healthy) {
+                continue;
+            }
+            try {
+                if (node.client.ping(pingTimeoutMillis)) {
+                    node.failures.set(0);
+                    node.healthy = true;
+                    LOGGER.log(Level.INFO, "Reinstating ClickHouse node {0}", node.endpoint);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Health check of ClickHouse node " + node.endpoint + " failed", e);
+            }
+        }
+    }
+}
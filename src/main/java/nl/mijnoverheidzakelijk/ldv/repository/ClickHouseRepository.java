@@ -1,65 +1,385 @@
 package nl.mijnoverheidzakelijk.ldv.repository;
 
 import com.clickhouse.client.api.Client;
+import com.clickhouse.client.api.ServerException;
+import com.clickhouse.client.api.data_formats.ClickHouseBinaryFormatReader;
+import com.clickhouse.client.api.insert.InsertResponse;
+import com.clickhouse.client.api.insert.InsertSettings;
+import com.clickhouse.client.api.query.GenericRecord;
+import com.clickhouse.client.api.query.QueryResponse;
+import com.clickhouse.client.api.query.QuerySettings;
 import com.clickhouse.data.ClickHouseFormat;
-import nl.mijnoverheidzakelijk.ldv.config.ConfigurationLoader;
+import io.opentelemetry.api.common.AttributeKey;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.logboekdataverwerking.LogboekAttributes;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * Repository encapsulating basic ClickHouse operations used by the exporter.
+ * Repository encapsulating basic ClickHouse operations used by the exporter, and the
+ * queries used to answer inzage requests.
+ * <p>
+ * {@code logboekdataverwerking.clickhouse.endpoint} may list several comma separated replicas;
+ * requests are then spread over them by {@link ClickHouseNodes}. With
+ * {@code logboekdataverwerking.clickhouse.cluster} set, the table is created as a
+ * {@code Distributed} table over replicated local tables on that cluster.
+ * <p>
+ * Requests run on a pool of {@code logboekdataverwerking.clickhouse.request-threads} threads.
+ * {@code logboekdataverwerking.clickhouse.insert-timeout-ms} bounds both the wait for an insert
+ * and, as socket timeout, the request itself, so a request to an unresponsive server is aborted
+ * rather than left running.
  */
-public class ClickHouseRepository {
-    private final Client client;
+public class ClickHouseRepository implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ClickHouseRepository.class.getName());
 
     /**
-     * Creates a ClickHouse client using configuration values.
+     * Server error codes reporting that an insert payload cannot be parsed into the table, such as
+     * {@code CANNOT_PARSE_TEXT}, {@code CANNOT_READ_ALL_DATA}, {@code TYPE_MISMATCH} and
+     * {@code INCORRECT_DATA}. Retrying such a payload fails again.
+     */
+    private static final Set<Integer> MALFORMED_PAYLOAD_CODES = Set.of(6, 16, 26, 27, 32, 33, 38, 41, 53, 72, 117, 131);
+
+    private final ExecutorService requestExecutor;
+    private final ClickHouseNodes nodes;
+    private final String table;
+    private final ClickHouseSchema schema;
+    private final ClickHouseFormat insertFormat;
+    private final long insertTimeoutMillis;
+    private final long queryTimeoutMillis;
+    private final boolean asyncInsert;
+    private final boolean waitForAsyncInsert;
+    private final boolean deduplicate;
+    private final boolean migrateLegacySchema;
+    private final InsertCompression compression;
+
+    /**
+     * Creates a ClickHouse client using the current {@link LdvSettings}.
      *
-     * @throws ConfigurationException if configuration cannot be read
+     * @throws ConfigurationException if configuration cannot be read or a connection key is missing
      */
     public ClickHouseRepository() throws ConfigurationException {
-        this.client = new Client.Builder()
-                .addEndpoint(ConfigurationLoader.getValueByKey("logboekdataverwerking.clickhouse.endpoint", String.class))
-                .setUsername(ConfigurationLoader.getValueByKey("logboekdataverwerking.clickhouse.username", String.class))
-                .setPassword(ConfigurationLoader.getValueByKey("logboekdataverwerking.clickhouse.password", String.class))
-                .setDefaultDatabase(ConfigurationLoader.getValueByKey("logboekdataverwerking.clickhouse.database", String.class))
-                .build();
+        this(LdvSettings.current().clickHouse());
+    }
+
+    /**
+     * Creates a ClickHouse client using the given settings.
+     *
+     * @param settings the ClickHouse settings
+     * @throws ConfigurationException if a connection key is missing or a setting is not supported
+     */
+    public ClickHouseRepository(LdvSettings.ClickHouse settings) throws ConfigurationException {
+        settings.requireConnection();
+        AtomicInteger threads = new AtomicInteger();
+        this.requestExecutor = Executors.newFixedThreadPool(settings.requestThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "ldv-clickhouse-request-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.nodes = new ClickHouseNodes(
+                settings.endpoints(),
+                endpoint -> new Client.Builder()
+                        .addEndpoint(endpoint)
+                        .setUsername(settings.username())
+                        .setPassword(settings.password())
+                        .setDefaultDatabase(settings.database())
+                        .useAsyncRequests(true)
+                        .setSharedOperationExecutor(requestExecutor)
+                        .setSocketTimeout(settings.insertTimeoutMillis(), ChronoUnit.MILLIS)
+                        .build(),
+                resolveStrategy(settings.loadBalancing()),
+                settings.ejectAfterFailures(),
+                settings.healthCheckIntervalMillis());
+        this.table = settings.table();
+        this.insertFormat = settings.format();
+        this.insertTimeoutMillis = settings.insertTimeoutMillis();
+        this.queryTimeoutMillis = settings.queryTimeoutMillis();
+        this.asyncInsert = settings.asyncInsert();
+        this.waitForAsyncInsert = settings.waitForAsyncInsert();
+        this.deduplicate = settings.deduplicate();
+        this.migrateLegacySchema = settings.migrateLegacySchema();
+        this.compression = new InsertCompression(settings.compression(), settings.compressionLevel(), settings.compressionThresholdBytes());
+        this.schema = new ClickHouseSchema(table,
+                settings.ttlDays(),
+                deduplicate ? settings.deduplicationWindow() : 0,
+                settings.cluster(),
+                settings.shardingKey(),
+                settings.resourceTable());
+    }
+
+    /**
+     * Returns the table in which resources are registered when
+     * {@code logboekdataverwerking.clickhouse.resource-table} is enabled.
+     *
+     * @return the resources table, or {@code null} if resources are stored in every row
+     */
+    public String getResourceTable() {
+        return schema.hasResourceTable() ? schema.resourceTable() : null;
+    }
 
+    /**
+     * Returns the format used to insert spans, configured through
+     * {@code logboekdataverwerking.clickhouse.format}. Either {@code JSONEachRow} (default)
+     * or {@code RowBinary}.
+     *
+     * @return the configured insert format
+     */
+    public ClickHouseFormat getInsertFormat() {
+        return insertFormat;
     }
 
     /**
      * Ensures that the target table exists with the expected schema.
+     * <p>
+     * A table created by an earlier version of this library, with string ids and {@code Int64}
+     * timestamps, is migrated to the current layout when
+     * {@code logboekdataverwerking.clickhouse.migrate-legacy-schema} is enabled: an empty table with
+     * the current layout takes its place first, so spans inserted during the migration end up in it,
+     * and the rows of the original, kept as {@code <table>_legacy}, are copied afterwards. Startup is
+     * refused while {@code <table>_migrating} or {@code <table>_legacy} exists, e.g. because another
+     * instance is migrating or an earlier migration was interrupted. Retention is configured with
+     * {@code logboekdataverwerking.clickhouse.ttl-days}.
+     * <p>
+     * On a cluster the statements run {@code ON CLUSTER}; legacy tables cannot be migrated there.
      *
-     * @throws ConfigurationException if the table name cannot be resolved
+     * @throws ConfigurationException if a legacy table exists and migration is not enabled, not
+     *                                supported or left over from an earlier attempt
      * @throws RuntimeException       if the DDL operation fails
      */
     public void ensureSchema() throws ConfigurationException {
-        String table = ConfigurationLoader.getValueByKey("logboekdataverwerking.clickhouse.table", String.class);
+        boolean legacy = isLegacyTable();
+        if (legacy && schema.isClustered()) {
+            throw new ConfigurationException("Table " + table + " uses the legacy schema, which cannot be migrated on a cluster");
+        }
+        if (legacy && !migrateLegacySchema) {
+            throw new ConfigurationException("Table " + table + " uses the legacy schema; set " +
+                    "logboekdataverwerking.clickhouse.migrate-legacy-schema=true to migrate it");
+        }
+        if (legacy) {
+            List<String> leftOver = migrationTables();
+            if (!leftOver.isEmpty()) {
+                throw new ConfigurationException("Table " + table + " uses the legacy schema, but " + String.join(" and ", leftOver) +
+                        " already exist; another instance is migrating it or an earlier migration was interrupted");
+            }
+        }
         try {
-            // Schema matching SpanData structure (camelCase)
-            client.query("CREATE TABLE IF NOT EXISTS " + table + " (\n" +
-                            "    traceId String,\n" +
-                            "    spanId String,\n" +
-                            "    status String,\n" +
-                            "    name String,\n" +
-                            "    startTime Int64,\n" +
-                            "    endTime Int64,\n" +
-                            "    parentSpanId String,\n" +
-                            "    attributes Map(String, String),\n" +
-                            "    resource Map(String, String)\n" +
-                            ")\n" +
-                            "ENGINE = MergeTree()\n" +
-                            "ORDER BY (traceId, spanId);")
-                    .get(30, TimeUnit.SECONDS);
+            if (legacy) {
+                LOGGER.log(Level.INFO, "Migrating ClickHouse table {0} to the current schema", table);
+                for (String statement : schema.migrateLegacyTable()) {
+                    execute(statement, 30);
+                }
+                String backfill = schema.backfillLegacyTable();
+                try {
+                    execute(backfill, 0);
+                } catch (Exception e) {
+                    throw new RuntimeException("Table " + table + " was migrated, but copying its rows from " + table +
+                            "_legacy failed; run the copy manually:\n" + backfill, e);
+                }
+            }
+            for (String statement : schema.createTables()) {
+                execute(statement, 30);
+            }
+            for (String statement : schema.alignTable(hasDataSubjectProjection())) {
+                execute(statement, 30);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Failed to ensure ClickHouse schema", e);
         }
     }
 
+    private boolean isLegacyTable() {
+        try {
+            List<GenericRecord> columns = nodes.client().queryAll(schema.startTimeTypeQuery());
+            return !columns.isEmpty() && ClickHouseSchema.LEGACY_START_TIME_TYPE.equals(columns.get(0).getString("type"));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to inspect ClickHouse schema", e);
+        }
+    }
+
+    private List<String> migrationTables() {
+        try {
+            return nodes.client().queryAll(schema.migrationTablesQuery()).stream()
+                    .map(record -> record.getString("name"))
+                    .toList();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to inspect ClickHouse schema", e);
+        }
+    }
+
+    private boolean hasDataSubjectProjection() {
+        List<GenericRecord> tables = nodes.client().queryAll(schema.createTableQuery());
+        return !tables.isEmpty() && tables.get(0).getString("create_table_query")
+                .contains("PROJECTION " + ClickHouseSchema.DATA_SUBJECT_PROJECTION);
+    }
+
+    /**
+     * Streams all records of a data subject with a start time in {@code [from, to)}, ordered by
+     * start time. Rows are decoded one at a time while the response is read, so arbitrarily large
+     * results do not have to fit in memory. The matching rows are located through the data subject
+     * projection created by {@link #ensureSchema()}, which holds only their sorting keys.
+     * <p>
+     * The returned stream holds an open server response and must be closed, preferably with
+     * try-with-resources.
+     *
+     * @param dataSubjectId   the data subject id, e.g. a BSN
+     * @param dataSubjectType the type of the data subject id, e.g. {@code BSN}
+     * @param from            inclusive lower bound of the start time
+     * @param to              exclusive upper bound of the start time
+     * @return a lazily populated stream of records
+     * @throws RuntimeException if the query fails
+     */
+    public Stream<LogboekRecord> findByDataSubject(String dataSubjectId, String dataSubjectType, Instant from, Instant to) {
+        return stream(schema.findByDataSubjectQuery(), Map.of(
+                "dataSubjectId", dataSubjectId,
+                "dataSubjectType", dataSubjectType,
+                "from", from.toEpochMilli(),
+                "to", to.toEpochMilli()));
+    }
+
+    /**
+     * Streams all records of a trace, ordered by start time. The returned stream must be closed.
+     *
+     * @param traceId the 32 character hex trace id
+     * @return a lazily populated stream of records
+     * @throws RuntimeException if the query fails
+     * @see #findByDataSubject(String, String, Instant, Instant)
+     */
+    public Stream<LogboekRecord> findByTrace(String traceId) {
+        return stream(schema.findByTraceQuery(), Map.of("traceId", traceId));
+    }
+
+    private Stream<LogboekRecord> stream(String query, Map<String, Object> parameters) {
+        Client client = nodes.client();
+        QueryResponse response;
+        try {
+            response = client.query(query, parameters, querySettings()).get(queryTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to query ClickHouse", e);
+        }
+        ClickHouseBinaryFormatReader reader = client.newBinaryFormatReader(response);
+        Iterator<LogboekRecord> records = new Iterator<>() {
+            private Boolean hasNext;
+
+            @Override
+            public boolean hasNext() {
+                if (hasNext == null) {
+                    hasNext = reader.next() != null;
+                }
+                return hasNext;
+            }
+
+            @Override
+            public LogboekRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                hasNext = null;
+                return toRecord(reader);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                        response.close();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed to close ClickHouse response", e);
+                    }
+                });
+    }
+
+    /**
+     * Settings of the record queries. They may run far longer than an insert: the server stops them
+     * after {@code query-timeout-ms} and reports progress in response headers until the first rows
+     * are sent, so a query that is still running does not run into the socket timeout of the client.
+     */
+    private QuerySettings querySettings() {
+        return new QuerySettings()
+                .serverSetting("max_execution_time", Long.toString(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queryTimeoutMillis))))
+                .serverSetting("send_progress_in_http_headers", "1")
+                .serverSetting("http_headers_progress_interval_ms", "1000");
+    }
+
+    private static LogboekRecord toRecord(ClickHouseBinaryFormatReader reader) {
+        return new LogboekRecord(
+                reader.getString("traceId"),
+                reader.getString("spanId"),
+                reader.getString("parentSpanId"),
+                reader.getString("name"),
+                reader.getString("status"),
+                reader.getString("service"),
+                reader.getZonedDateTime("startTime").toInstant(),
+                reader.getZonedDateTime("endTime").toInstant(),
+                reader.getString("processingActivityId"),
+                reader.getString("dataSubjectId"),
+                reader.getString("dataSubjectType"),
+                attributes(reader));
+    }
+
+    /**
+     * Reassembles all span attributes from the attribute map, the dedicated {@code dpl.core.*}
+     * columns and the typed maps, as the string values they had before they were split.
+     */
+    private static Map<String, String> attributes(ClickHouseBinaryFormatReader reader) {
+        Map<String, String> attributes = new HashMap<>(reader.<Map<String, String>>readValue("attributes"));
+        putIfSet(attributes, LogboekAttributes.PROCESSING_ACTIVITY_ID, reader.getString("processingActivityId"));
+        putIfSet(attributes, LogboekAttributes.DATA_SUBJECT_ID, reader.getString("dataSubjectId"));
+        putIfSet(attributes, LogboekAttributes.DATA_SUBJECT_ID_TYPE, reader.getString("dataSubjectType"));
+        putIfSet(attributes, LogboekAttributes.FOREIGN_OPERATION_SPAN_ID, reader.getString("foreignOperationSpanId"));
+        putIfSet(attributes, LogboekAttributes.FOREIGN_OPERATION_PROCESSOR, reader.getString("foreignOperationProcessor"));
+        for (String column : List.of("longAttributes", "doubleAttributes", "boolAttributes")) {
+            reader.<Map<String, ?>>readValue(column).forEach((key, value) -> attributes.put(key, String.valueOf(value)));
+        }
+        return attributes;
+    }
+
+    private static void putIfSet(Map<String, String> attributes, AttributeKey<String> key, String value) {
+        if (value != null && !value.isEmpty()) {
+            attributes.put(key.getKey(), value);
+        }
+    }
+
+    /**
+     * Runs a statement and waits for it to finish. The server reports progress in response headers
+     * while the statement runs, so long migrations do not run into the socket timeout.
+     *
+     * @param timeoutSeconds maximum time to wait, or {@code 0} to wait without limit
+     */
+    private void execute(String statement, long timeoutSeconds) throws Exception {
+        QuerySettings settings = new QuerySettings()
+                .serverSetting("send_progress_in_http_headers", "1")
+                .serverSetting("http_headers_progress_interval_ms", "1000");
+        CompletableFuture<QueryResponse> response = nodes.client().query(statement, settings);
+        try (QueryResponse ignored = timeoutSeconds > 0 ? response.get(timeoutSeconds, TimeUnit.SECONDS) : response.get()) {
+            // statement has no result to read
+        }
+    }
+
     /**
      * Inserts a JSON payload into the specified table.
      *
@@ -68,12 +388,300 @@ public class ClickHouseRepository {
      * @throws RuntimeException if the insert fails
      */
     public void insertJsonEachRow(String table, String jsonEachRowPayload) {
+        insertJsonEachRow(table, new ByteArrayInputStream(jsonEachRowPayload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Inserts a UTF-8 encoded JSON payload into the specified table, streaming it
+     * from the given input without further copying.
+     *
+     * @param table              the target table name
+     * @param jsonEachRowPayload stream where each line is a JSON object
+     * @throws RuntimeException if the insert fails
+     */
+    public void insertJsonEachRow(String table, InputStream jsonEachRowPayload) {
+        insert(table, jsonEachRowPayload, ClickHouseFormat.JSONEachRow);
+    }
+
+    /**
+     * Inserts a {@code RowBinary} payload in the {@linkplain RowBinaryLayout#CURRENT current layout}
+     * into the specified table.
+     *
+     * @param table            the target table name
+     * @param rowBinaryPayload stream of binary encoded rows
+     * @throws RuntimeException if the insert fails
+     */
+    public void insertRowBinary(String table, InputStream rowBinaryPayload) {
+        insertRowBinary(table, rowBinaryPayload, RowBinaryLayout.CURRENT);
+    }
+
+    /**
+     * Inserts a {@code RowBinary} payload written in the given layout, e.g. by an earlier version,
+     * into the specified table. Columns that are not part of the layout get their default.
+     *
+     * @param table            the target table name
+     * @param rowBinaryPayload stream of binary encoded rows
+     * @param layout           the columns of the rows
+     * @throws RuntimeException if the insert fails
+     */
+    public void insertRowBinary(String table, InputStream rowBinaryPayload, RowBinaryLayout layout) {
+        await(startInsert(nodes.select(null), target(table, ClickHouseFormat.RowBinary, layout), rowBinaryPayload,
+                ClickHouseFormat.RowBinary, insertSettings(null, false)));
+    }
+
+    /**
+     * Inserts a payload encoded in the given format into the specified table.
+     *
+     * @param table   the target table name
+     * @param payload the encoded rows
+     * @param format  the format of the payload
+     * @throws RuntimeException if the insert fails
+     */
+    public void insert(String table, InputStream payload, ClickHouseFormat format) {
+        await(startInsert(nodes.select(null), target(table, format, RowBinaryLayout.CURRENT), payload, format,
+                insertSettings(null, false)));
+    }
+
+    /**
+     * Starts an insert of a payload encoded in the given format without waiting for it.
+     * The returned future fails with a {@link java.util.concurrent.TimeoutException} when the
+     * insert does not finish within {@code logboekdataverwerking.clickhouse.insert-timeout-ms}.
+     * The payload stream may still be read after that, until the request is aborted by the socket
+     * timeout; use {@link #insert(String, InputStream, ClickHouseFormat)} if it is closed afterwards.
+     *
+     * @param table   the target table name
+     * @param payload the encoded rows
+     * @param format  the format of the payload
+     * @return a future completing when the server confirmed the insert
+     */
+    public CompletableFuture<Void> insertAsync(String table, InputStream payload, ClickHouseFormat format) {
+        return startInsert(nodes.select(null), target(table, format, RowBinaryLayout.CURRENT), payload, format,
+                insertSettings(null, false)).result();
+    }
+
+    /**
+     * Inserts a payload held in a buffer into the specified table.
+     *
+     * @param table   the target table name
+     * @param payload the encoded rows, from position to limit
+     * @param format  the format of the payload
+     * @throws RuntimeException if the insert fails
+     * @see #insertAsync(String, ByteBuffer, ClickHouseFormat)
+     */
+    public void insert(String table, ByteBuffer payload, ClickHouseFormat format) {
+        insert(table, payload, format, RowBinaryLayout.CURRENT);
+    }
+
+    /**
+     * Inserts a payload held in a buffer into the specified table, with {@code RowBinary} rows in
+     * the given layout.
+     *
+     * @param table   the target table name
+     * @param payload the encoded rows, from position to limit
+     * @param format  the format of the payload
+     * @param layout  the columns of {@code RowBinary} rows; ignored for other formats
+     * @throws RuntimeException if the insert fails
+     */
+    public void insert(String table, ByteBuffer payload, ClickHouseFormat format, RowBinaryLayout layout) {
+        await(startInsert(table, payload, format, layout));
+    }
+
+    /**
+     * Waits for an insert and for its request to finish, so the caller may reuse the payload.
+     */
+    private static void await(PendingInsert insert) {
         try {
-            InputStream data = new ByteArrayInputStream(jsonEachRowPayload.getBytes(StandardCharsets.UTF_8));
-            client.insert(table, data, ClickHouseFormat.JSONEachRow).get();
+            insert.result().get();
         } catch (Exception e) {
+            insert.finished().join();
             throw new RuntimeException("Failed to insert into ClickHouse", e);
         }
     }
 
+    /**
+     * Starts an insert of a payload held in a buffer and tells when the server confirmed it and
+     * when its request stopped reading the payload. After a timeout the request may still be
+     * running; it ends at the latest when the socket timeout aborts it.
+     * <p>
+     * With {@code logboekdataverwerking.clickhouse.deduplicate} enabled, the insert carries an
+     * {@code insert_deduplication_token} derived from the payload bytes, so a batch that is
+     * retried after an ambiguous failure is stored only once.
+     * <p>
+     * With {@code logboekdataverwerking.clickhouse.compression} set, payloads of at least
+     * {@code logboekdataverwerking.clickhouse.compression-threshold-bytes} are compressed before
+     * they are sent.
+     * <p>
+     * If the selected node cannot be reached, the insert is retried on the other nodes. Timeouts
+     * are not retried, since the insert may still have been applied.
+     *
+     * @param table   the target table name
+     * @param payload the encoded rows, from position to limit; must not change until
+     *                {@link PendingInsert#finished()} completes
+     * @param format  the format of the payload
+     * @return the insert, with a result failing after {@code insert-timeout-ms}
+     */
+    public PendingInsert startInsert(String table, ByteBuffer payload, ClickHouseFormat format) {
+        return startInsert(table, payload, format, RowBinaryLayout.CURRENT);
+    }
+
+    private PendingInsert startInsert(String table, ByteBuffer payload, ClickHouseFormat format, RowBinaryLayout layout) {
+        String target = target(table, format, layout);
+        String deduplicationToken = deduplicate ? deduplicationToken(payload.duplicate()) : null;
+        if (!compression.applies(payload.remaining())) {
+            return insertWithFailover(target, payload, format, insertSettings(deduplicationToken, false), null, nodes.size());
+        }
+        InsertCompression.CompressedBuffer compressed;
+        try {
+            compressed = compression.compress(payload);
+        } catch (RuntimeException e) {
+            return PendingInsert.failed(e);
+        }
+        PendingInsert insert = insertWithFailover(target, compressed.toByteBuffer(), format,
+                insertSettings(deduplicationToken, true), null, nodes.size());
+        insert.finished().whenComplete((ignored, error) -> compressed.release());
+        return insert;
+    }
+
+    /**
+     * Starts an insert of a payload held in a buffer without waiting for it.
+     *
+     * @param table   the target table name
+     * @param payload the encoded rows, from position to limit; must not change until the request
+     *                finished, which may be after the returned future timed out
+     * @param format  the format of the payload
+     * @return a future completing when the server confirmed the insert
+     * @see #startInsert(String, ByteBuffer, ClickHouseFormat)
+     */
+    public CompletableFuture<Void> insertAsync(String table, ByteBuffer payload, ClickHouseFormat format) {
+        return startInsert(table, payload, format).result();
+    }
+
+    /**
+     * Tells whether an insert failed because the server cannot parse the payload, as opposed to a
+     * failure that may succeed when retried.
+     *
+     * @param error the failure of an insert, possibly wrapped
+     * @return {@code true} if the payload itself was rejected
+     */
+    public static boolean isMalformedPayload(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ServerException serverException) {
+                return MALFORMED_PAYLOAD_CODES.contains(serverException.getCode());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the clients of all ClickHouse nodes and stops their health checks. Inserts still in
+     * flight fail.
+     */
+    @Override
+    public void close() {
+        nodes.close();
+        requestExecutor.shutdown();
+    }
+
+    /**
+     * An insert that has been started.
+     *
+     * @param result   completes when the server confirmed the insert; fails when it was rejected, no
+     *                 node could be reached or it did not finish within {@code insert-timeout-ms}
+     * @param finished completes, never exceptionally, once no request reads the payload any more
+     */
+    public record PendingInsert(CompletableFuture<Void> result, CompletableFuture<Void> finished) {
+
+        static PendingInsert failed(Throwable error) {
+            return new PendingInsert(CompletableFuture.failedFuture(error), CompletableFuture.completedFuture(null));
+        }
+    }
+
+    /**
+     * Inserts on the selected node and retries on another node when it cannot be reached. A retry
+     * only starts after the failed request ended, so at most one request reads the payload and
+     * {@link PendingInsert#finished()} follows the last attempt.
+     */
+    private PendingInsert insertWithFailover(String table, ByteBuffer payload, ClickHouseFormat format,
+                                             InsertSettings settings, ClickHouseNodes.Node failed, int attempts) {
+        ClickHouseNodes.Node node = nodes.select(failed);
+        PendingInsert attempt = startInsert(node, table, new ByteBufferInputStream(payload.duplicate()), format, settings);
+        CompletableFuture<PendingInsert> last = attempt.result().handle((ignored, error) -> {
+            Throwable cause = error == null ? null : ClickHouseNodes.unwrap(error);
+            if (cause == null || attempts <= 1 || !ClickHouseNodes.isNodeFailure(cause)) {
+                return attempt;
+            }
+            LOGGER.log(Level.WARNING, "Insert on ClickHouse node {0} failed, retrying on another node", node.endpoint);
+            return insertWithFailover(table, payload, format, settings, node, attempts - 1);
+        });
+        return new PendingInsert(
+                last.thenCompose(PendingInsert::result),
+                last.thenCompose(PendingInsert::finished).exceptionally(error -> null));
+    }
+
+    private PendingInsert startInsert(ClickHouseNodes.Node node, String table, InputStream payload,
+                                      ClickHouseFormat format, InsertSettings settings) {
+        CompletableFuture<InsertResponse> response;
+        node.inFlight.incrementAndGet();
+        try {
+            response = node.client.insert(table, payload, format, settings);
+        } catch (Exception e) {
+            node.inFlight.decrementAndGet();
+            nodes.record(node, e);
+            return PendingInsert.failed(e);
+        }
+        CompletableFuture<Void> request = response
+                .whenComplete((ignored, error) -> {
+                    node.inFlight.decrementAndGet();
+                    nodes.record(node, error);
+                })
+                .thenAccept(InsertResponse::close);
+        // the timeout completes a copy, so the request itself keeps reporting when it really ends
+        return new PendingInsert(
+                request.copy().orTimeout(insertTimeoutMillis, TimeUnit.MILLISECONDS),
+                request.handle((ignored, error) -> null));
+    }
+
+    /**
+     * Appends the column list of the layout to the table for {@code RowBinary} inserts. The client
+     * places the table as given in {@code INSERT INTO <table> FORMAT <format>}.
+     */
+    private static String target(String table, ClickHouseFormat format, RowBinaryLayout layout) {
+        return format == ClickHouseFormat.RowBinary ? table + " (" + layout.columns() + ")" : table;
+    }
+
+    private InsertSettings insertSettings(String deduplicationToken, boolean compressed) {
+        InsertSettings settings = new InsertSettings();
+        if (compressed) {
+            settings.httpHeader("Content-Encoding", compression.contentEncoding());
+        }
+        if (asyncInsert) {
+            settings.serverSetting("async_insert", "1");
+            settings.serverSetting("wait_for_async_insert", waitForAsyncInsert ? "1" : "0");
+            if (deduplicate) {
+                settings.serverSetting("async_insert_deduplicate", "1");
+            }
+        }
+        if (deduplicationToken != null) {
+            settings.setDeduplicationToken(deduplicationToken);
+        }
+        return settings;
+    }
+
+    private static String deduplicationToken(ByteBuffer payload) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(payload);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static ClickHouseNodes.Strategy resolveStrategy(String value) throws ConfigurationException {
+        try {
+            return ClickHouseNodes.Strategy.of(value);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unsupported value for logboekdataverwerking.clickhouse.load-balancing: " + value);
+        }
+    }
 }
@@ -0,0 +1,383 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the DDL for the span table.
+ * <p>
+ * The layout is tuned for the typical Logboek query "all processing for data subject X in
+ * period Y": rows are partitioned by month and sorted by service, processing activity and
+ * start time, ids are stored as fixed width strings, repetitive strings as
+ * {@code LowCardinality} and timestamps as {@code DateTime64} with delta encoding. The
+ * well-known {@code dpl.core.*} attributes are written to dedicated columns, with skip indexes,
+ * instead of the attribute map, so filtering on them does not require reading the map. Numeric and
+ * boolean attributes are kept in typed maps; only string and array attributes are stored as text
+ * in {@code attributes}. The dedicated columns default to the matching map entry, so rows inserted
+ * by earlier versions, e.g. from archived files, still get them filled in.
+ * <p>
+ * Columns that are written by the exporter come first, in the order expected by the
+ * {@code RowBinary} writer.
+ * <p>
+ * When a cluster is configured, the rows are stored in a {@code ReplicatedMergeTree} table
+ * {@code <table>_local} on every shard, and {@code <table>} is a {@code Distributed} table that
+ * spreads inserts over the shards with the configured sharding key. All DDL then runs
+ * {@code ON CLUSTER}.
+ * <p>
+ * Every row carries the {@code resourceId} of its OpenTelemetry resource. With the resources
+ * table enabled the resource attributes are stored once in {@code <table>_resources}, keyed by that
+ * id, instead of in every row.
+ */
+final class ClickHouseSchema {
+
+    /**
+     * Column type of {@code startTime} in tables created before the optimized layout.
+     */
+    static final String LEGACY_START_TIME_TYPE = "Int64";
+
+    /**
+     * Projection holding the data subject and the sorting key of every row, sorted by data subject.
+     * Inzage queries use it as an index to find the rows in the table, so it stays small compared to
+     * the rows themselves.
+     */
+    static final String DATA_SUBJECT_PROJECTION = "by_data_subject_v3";
+
+    /**
+     * Projections created by earlier versions, which held a copy of all record columns.
+     */
+    private static final List<String> LEGACY_DATA_SUBJECT_PROJECTIONS = List.of("by_data_subject", "by_data_subject_v2");
+
+    /**
+     * Columns of the data subject projection: the data subject, followed by the sorting key of the table.
+     */
+    private static final String DATA_SUBJECT_KEY_COLUMNS = "dataSubjectType, dataSubjectId, startTime, service, processingActivityId";
+
+    /**
+     * Columns returned by the query methods.
+     */
+    static final String RECORD_COLUMNS = "traceId, spanId, parentSpanId, name, status, service, startTime, endTime, " +
+            "processingActivityId, dataSubjectId, dataSubjectType, foreignOperationSpanId, foreignOperationProcessor, " +
+            "attributes, longAttributes, doubleAttributes, boolAttributes";
+
+    private static final String RESOURCE_ID_COLUMN = "resourceId UInt64 DEFAULT 0 CODEC(ZSTD(1))";
+
+    /**
+     * Columns following {@code resourceId}, in insert order. The first three replace the
+     * materialized columns of earlier versions.
+     */
+    private static final String[] ATTRIBUTE_COLUMNS = {
+            "processingActivityId LowCardinality(String) DEFAULT attributes['dpl.core.processing_activity_id']",
+            "dataSubjectId String DEFAULT attributes['dpl.core.data_subject_id'] CODEC(ZSTD(1))",
+            "dataSubjectType LowCardinality(String) DEFAULT attributes['dpl.core.data_subject_id_type']",
+            "foreignOperationSpanId String DEFAULT attributes['dpl.core.foreign_operation.span_id'] CODEC(ZSTD(1))",
+            "foreignOperationProcessor LowCardinality(String) DEFAULT attributes['dpl.core.foreign_operation.processor']",
+            "longAttributes Map(LowCardinality(String), Int64) CODEC(ZSTD(1))",
+            "doubleAttributes Map(LowCardinality(String), Float64) CODEC(ZSTD(1))",
+            "boolAttributes Map(LowCardinality(String), Bool) CODEC(ZSTD(1))"
+    };
+
+    /**
+     * Number of {@link #ATTRIBUTE_COLUMNS} that existed as materialized columns in earlier versions.
+     */
+    private static final int MATERIALIZED_COLUMNS = 3;
+
+    private static final String[] INDEXES = {
+            "INDEX idx_trace_id traceId TYPE bloom_filter(0.01) GRANULARITY 4",
+            "INDEX idx_data_subject_id dataSubjectId TYPE bloom_filter(0.01) GRANULARITY 4",
+            "INDEX idx_processing_activity_id processingActivityId TYPE bloom_filter(0.01) GRANULARITY 4"
+    };
+
+    private final String table;
+    private final int ttlDays;
+    private final int deduplicationWindow;
+    private final String cluster;
+    private final String shardingKey;
+    private final boolean resourceTable;
+
+    /**
+     * @param table               the table name
+     * @param ttlDays             retention in days, or {@code 0} to keep rows forever
+     * @param deduplicationWindow value for {@code non_replicated_deduplication_window}, or {@code 0} to leave it unset
+     * @param cluster             the cluster to create a {@code Distributed} table on, or {@code null} for a single table
+     * @param shardingKey         expression that assigns rows to shards, only used with a cluster
+     * @param resourceTable       whether to create the resources table
+     */
+    ClickHouseSchema(String table, int ttlDays, int deduplicationWindow, String cluster, String shardingKey, boolean resourceTable) {
+        this.table = table;
+        this.ttlDays = ttlDays;
+        this.deduplicationWindow = deduplicationWindow;
+        this.cluster = cluster;
+        this.shardingKey = shardingKey;
+        this.resourceTable = resourceTable;
+    }
+
+    /**
+     * @return whether resources are registered in a separate table
+     */
+    boolean hasResourceTable() {
+        return resourceTable;
+    }
+
+    /**
+     * @return the name of the resources table
+     */
+    String resourceTable() {
+        return table + "_resources";
+    }
+
+    /**
+     * @return whether the table is distributed over a cluster
+     */
+    boolean isClustered() {
+        return cluster != null;
+    }
+
+    /**
+     * @return the {@code CREATE TABLE IF NOT EXISTS} statement for the given table name
+     */
+    String createTable(String name) {
+        StringBuilder ddl = new StringBuilder()
+                .append("CREATE TABLE IF NOT EXISTS ").append(name).append(onCluster()).append(" (\n")
+                .append("    traceId FixedString(32) CODEC(ZSTD(1)),\n")
+                .append("    spanId FixedString(16) CODEC(ZSTD(1)),\n")
+                .append("    status LowCardinality(String),\n")
+                .append("    name LowCardinality(String),\n")
+                .append("    startTime DateTime64(3, 'UTC') CODEC(Delta, ZSTD(1)),\n")
+                .append("    endTime DateTime64(3, 'UTC') CODEC(Delta, ZSTD(1)),\n")
+                .append("    parentSpanId FixedString(16) CODEC(ZSTD(1)),\n")
+                .append("    attributes Map(LowCardinality(String), String) CODEC(ZSTD(1)),\n")
+                .append("    resource Map(LowCardinality(String), String) CODEC(ZSTD(1)),\n")
+                .append("    service LowCardinality(String),\n")
+                .append("    ").append(RESOURCE_ID_COLUMN);
+        for (String column : ATTRIBUTE_COLUMNS) {
+            ddl.append(",\n    ").append(column);
+        }
+        for (String index : INDEXES) {
+            ddl.append(",\n    ").append(index);
+        }
+        ddl.append(",\n    ").append(dataSubjectProjection());
+        ddl.append("\n)\n")
+                .append("ENGINE = ").append(isClustered() ? "ReplicatedMergeTree()" : "MergeTree()").append("\n")
+                .append("PARTITION BY toYYYYMM(startTime)\n")
+                .append("ORDER BY (service, processingActivityId, startTime)");
+        if (ttlDays > 0) {
+            ddl.append("\n").append(ttlClause());
+        }
+        if (deduplicationWindow > 0 && !isClustered()) {
+            ddl.append("\nSETTINGS non_replicated_deduplication_window = ").append(deduplicationWindow);
+        }
+        return ddl.toString();
+    }
+
+    /**
+     * @return the {@code CREATE TABLE IF NOT EXISTS} statements for the configured table, in order
+     */
+    List<String> createTables() {
+        List<String> statements = new ArrayList<>();
+        if (!isClustered()) {
+            statements.add(createTable(table));
+        } else {
+            statements.add(createTable(storageTable()));
+            statements.add(createDistributed(table, storageTable(), shardingKey));
+        }
+        if (resourceTable) {
+            String resourceStorage = isClustered() ? resourceTable() + "_local" : resourceTable();
+            statements.add("CREATE TABLE IF NOT EXISTS " + resourceStorage + onCluster() + " (\n" +
+                    "    resourceId UInt64,\n" +
+                    "    service LowCardinality(String),\n" +
+                    "    attributes Map(LowCardinality(String), String),\n" +
+                    "    registered DateTime64(3, 'UTC') DEFAULT now64(3)\n" +
+                    ")\n" +
+                    "ENGINE = " + (isClustered() ? "ReplicatedReplacingMergeTree()" : "ReplacingMergeTree()") + "\n" +
+                    "ORDER BY resourceId");
+            if (isClustered()) {
+                statements.add(createDistributed(resourceTable(), resourceStorage, "resourceId"));
+            }
+        }
+        return statements;
+    }
+
+    private String createDistributed(String name, String storage, String shardingExpression) {
+        return "CREATE TABLE IF NOT EXISTS " + name + onCluster() + " AS " + storage + "\n" +
+                "ENGINE = Distributed(" + quote(cluster) + ", " + databaseExpression() + ", " +
+                quote(unqualified(storage)) + ", " + shardingExpression + ")";
+    }
+
+    /**
+     * Idempotent statements that bring an existing table with the optimized layout in line with
+     * the current configuration, column set, index set and projections.
+     * <p>
+     * A table without the current data subject projection may predate the typed attribute columns:
+     * its projections are dropped, its materialized {@code dpl.core.*} columns become regular columns
+     * of the same type, keeping their stored values, and the projection is rebuilt. Missing attribute columns are added after {@code resourceId}, so the column order
+     * matches the {@code RowBinary} writer.
+     *
+     * @param hasDataSubjectProjection whether the table already has the current data subject
+     *                                 projection; if not it is added and built for the existing parts
+     * @return the statements to run, in order
+     */
+    List<String> alignTable(boolean hasDataSubjectProjection) {
+        String alter = "ALTER TABLE " + storageTable() + onCluster();
+        List<String> statements = new ArrayList<>();
+        if (!hasDataSubjectProjection) {
+            for (String projection : LEGACY_DATA_SUBJECT_PROJECTIONS) {
+                statements.add(alter + " DROP PROJECTION IF EXISTS " + projection);
+            }
+        }
+        for (String name : isClustered() ? List.of(storageTable(), table) : List.of(table)) {
+            String alterColumns = "ALTER TABLE " + name + onCluster();
+            statements.add(alterColumns + " ADD COLUMN IF NOT EXISTS " + RESOURCE_ID_COLUMN + " AFTER service");
+            String previous = "resourceId";
+            for (int i = 0; i < ATTRIBUTE_COLUMNS.length; i++) {
+                String column = ATTRIBUTE_COLUMNS[i];
+                if (i >= MATERIALIZED_COLUMNS) {
+                    statements.add(alterColumns + " ADD COLUMN IF NOT EXISTS " + column + " AFTER " + previous);
+                } else if (!hasDataSubjectProjection) {
+                    statements.add(alterColumns + " MODIFY COLUMN " + column);
+                }
+                previous = column.substring(0, column.indexOf(' '));
+            }
+        }
+        for (String index : INDEXES) {
+            statements.add(alter + " ADD " + index.replaceFirst("INDEX ", "INDEX IF NOT EXISTS "));
+        }
+        if (!hasDataSubjectProjection) {
+            statements.add(alter + " ADD " + dataSubjectProjection().replaceFirst("PROJECTION ", "PROJECTION IF NOT EXISTS "));
+            statements.add(alter + " MATERIALIZE PROJECTION " + DATA_SUBJECT_PROJECTION);
+        }
+        if (ttlDays > 0) {
+            statements.add(alter + " MODIFY " + ttlClause());
+        }
+        if (deduplicationWindow > 0 && !isClustered()) {
+            statements.add(alter + " MODIFY SETTING non_replicated_deduplication_window = " + deduplicationWindow);
+        }
+        return statements;
+    }
+
+    /**
+     * Statements that replace a table with the legacy layout (string ids, {@code Int64}
+     * millisecond timestamps) by an empty table with the optimized layout. The legacy table is
+     * renamed to {@code <table>_legacy} in the same atomic {@code RENAME} that puts the new table in
+     * place, so inserts go to the new table from then on; its rows are copied afterwards with
+     * {@link #backfillLegacyTable()}. The new table is created as {@code <table>_migrating} without
+     * {@code IF NOT EXISTS}, so a second instance migrating at the same time fails instead of
+     * replacing it.
+     *
+     * @return the statements to run, in order
+     */
+    List<String> migrateLegacyTable() {
+        return List.of(
+                createTable(migratingTable()).replaceFirst("CREATE TABLE IF NOT EXISTS ", "CREATE TABLE "),
+                "RENAME TABLE " + table + " TO " + legacyTable() + ", " + migratingTable() + " TO " + table
+        );
+    }
+
+    /**
+     * @return the statement copying the rows of {@code <table>_legacy} into the table
+     */
+    String backfillLegacyTable() {
+        return "INSERT INTO " + table +
+                " (traceId, spanId, status, name, startTime, endTime, parentSpanId, attributes, resource, service)\n" +
+                "SELECT traceId, spanId, status, name,\n" +
+                "       fromUnixTimestamp64Milli(startTime, 'UTC'), fromUnixTimestamp64Milli(endTime, 'UTC'),\n" +
+                "       parentSpanId, attributes, resource, resource['service.name']\n" +
+                "FROM " + legacyTable();
+    }
+
+    /**
+     * @return the query returning the names of {@code <table>_migrating} and {@code <table>_legacy}
+     * that exist, empty if neither does
+     */
+    String migrationTablesQuery() {
+        return "SELECT name FROM system.tables WHERE database = " + databaseExpression() + " AND name IN (" +
+                quote(unqualified(migratingTable())) + ", " + quote(unqualified(legacyTable())) + ")";
+    }
+
+    /**
+     * @return the query returning the type of the {@code startTime} column, empty if the table does not exist
+     */
+    String startTimeTypeQuery() {
+        return "SELECT type FROM system.columns WHERE " + tableFilter(table, "table") + " AND name = 'startTime'";
+    }
+
+    /**
+     * @return the query returning the {@code create_table_query} of the table holding the rows, empty
+     * if the table does not exist
+     */
+    String createTableQuery() {
+        return "SELECT create_table_query FROM system.tables WHERE " + tableFilter(storageTable(), "name");
+    }
+
+    /**
+     * The subquery reads only the data subject projection and yields the sorting keys of the matching
+     * rows, so the outer query reads just the granules holding them. On a cluster the subquery runs
+     * against the local table of each shard, which holds the matching rows of that shard.
+     *
+     * @return the query for all records of a data subject in a period
+     */
+    String findByDataSubjectQuery() {
+        String filter = "dataSubjectType = {dataSubjectType:String} AND dataSubjectId = {dataSubjectId:String}\n" +
+                "  AND startTime >= fromUnixTimestamp64Milli({from:Int64}, 'UTC')\n" +
+                "  AND startTime < fromUnixTimestamp64Milli({to:Int64}, 'UTC')";
+        return "SELECT " + RECORD_COLUMNS + " FROM " + table + "\n" +
+                "WHERE (service, processingActivityId, startTime) IN (\n" +
+                "    SELECT service, processingActivityId, startTime FROM " + storageTable() + "\n" +
+                "    WHERE " + filter + ")\n" +
+                "  AND " + filter + "\n" +
+                "ORDER BY startTime";
+    }
+
+    /**
+     * @return the query for all records of a trace, served by the trace id skip index
+     */
+    String findByTraceQuery() {
+        return "SELECT " + RECORD_COLUMNS + " FROM " + table + "\n" +
+                "WHERE traceId = {traceId:FixedString(32)}\n" +
+                "ORDER BY startTime";
+    }
+
+    private String dataSubjectProjection() {
+        return "PROJECTION " + DATA_SUBJECT_PROJECTION + " (SELECT " + DATA_SUBJECT_KEY_COLUMNS +
+                " ORDER BY (dataSubjectType, dataSubjectId, startTime))";
+    }
+
+    private String migratingTable() {
+        return table + "_migrating";
+    }
+
+    private String legacyTable() {
+        return table + "_legacy";
+    }
+
+    /**
+     * @return the table holding the rows: the configured table, or its local table on a cluster
+     */
+    private String storageTable() {
+        return isClustered() ? table + "_local" : table;
+    }
+
+    private String onCluster() {
+        return isClustered() ? " ON CLUSTER " + quote(cluster) : "";
+    }
+
+    private String tableFilter(String name, String nameColumn) {
+        return "database = " + databaseExpression() + " AND " + nameColumn + " = " + quote(unqualified(name));
+    }
+
+    private String databaseExpression() {
+        int dot = table.lastIndexOf('.');
+        return dot < 0 ? "currentDatabase()" : quote(table.substring(0, dot));
+    }
+
+    private static String unqualified(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private String ttlClause() {
+        return "TTL toDateTime(startTime) + INTERVAL " + ttlDays + " DAY";
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+}
@@ -0,0 +1,158 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Compresses insert payloads before they are sent, using HTTP {@code Content-Encoding} so the
+ * server decompresses them transparently.
+ * <p>
+ * Span rows repeat the same attribute and resource keys, so they compress very well. Payloads
+ * smaller than the threshold are sent as is, since compressing them saves little and costs CPU.
+ * {@code lz4} uses lz4-java, which the ClickHouse client already depends on; {@code zstd}
+ * requires {@code com.github.luben:zstd-jni} on the classpath.
+ * <p>
+ * Compressed payloads are written into pooled buffers, which the caller releases once the insert
+ * no longer reads them.
+ */
+final class InsertCompression {
+
+    /**
+     * Supported codecs.
+     */
+    enum Codec {
+        NONE(null, 0),
+        LZ4("lz4", 0),
+        ZSTD("zstd", 3);
+
+        private final String contentEncoding;
+        private final int defaultLevel;
+
+        Codec(String contentEncoding, int defaultLevel) {
+            this.contentEncoding = contentEncoding;
+            this.defaultLevel = defaultLevel;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024 * 1024;
+
+    private final BlockingQueue<CompressedBuffer> pool = new ArrayBlockingQueue<>(8);
+    private final Codec codec;
+    private final int level;
+    private final int threshold;
+    private final LZ4Compressor lz4Compressor;
+
+    /**
+     * @param codec     the codec, {@code none}, {@code lz4} or {@code zstd}
+     * @param level     compression level; for lz4 {@code 0} selects the fast compressor and higher
+     *                  values the high compression one, for zstd it is passed as is; {@code null}
+     *                  selects the codec's default of {@code 0} for lz4 and {@code 3} for zstd
+     * @param threshold minimum payload size in bytes to compress
+     * @throws ConfigurationException if the codec is not supported
+     */
+    InsertCompression(String codec, Integer level, int threshold) throws ConfigurationException {
+        try {
+            this.codec = Codec.valueOf(codec.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unsupported value for logboekdataverwerking.clickhouse.compression: " + codec);
+        }
+        this.level = level != null ? level : this.codec.defaultLevel;
+        this.threshold = threshold;
+        this.lz4Compressor = this.codec != Codec.LZ4 ? null
+                : this.level > 0 ? LZ4Factory.fastestInstance().highCompressor(this.level) : LZ4Factory.fastestInstance().fastCompressor();
+    }
+
+    /**
+     * @param size payload size in bytes
+     * @return whether a payload of this size is compressed
+     */
+    boolean applies(int size) {
+        return codec != Codec.NONE && size >= threshold;
+    }
+
+    /**
+     * @return the value of the {@code Content-Encoding} header for compressed payloads
+     */
+    String contentEncoding() {
+        return codec.contentEncoding;
+    }
+
+    /**
+     * Compresses a payload.
+     *
+     * @param payload the payload, from position to limit; the position is not changed
+     * @return a pooled buffer holding the compressed payload, to be released when it is no longer read
+     */
+    CompressedBuffer compress(ByteBuffer payload) {
+        CompressedBuffer compressed = pool.poll();
+        if (compressed == null) {
+            compressed = new CompressedBuffer(this);
+        }
+        try (OutputStream out = codec == Codec.LZ4
+                ? new LZ4FrameOutputStream(compressed, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB, -1L, lz4Compressor,
+                        XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE)
+                : Zstd.open(compressed, level)) {
+            Channels.newChannel(out).write(payload.duplicate());
+        } catch (IOException e) {
+            compressed.release();
+            throw new UncheckedIOException("Failed to compress insert payload", e);
+        }
+        return compressed;
+    }
+
+    /**
+     * Holds the only reference to zstd-jni, so the class is only needed when zstd is selected.
+     */
+    private static final class Zstd {
+
+        static OutputStream open(OutputStream out, int level) throws IOException {
+            return new ZstdOutputStream(out, level);
+        }
+    }
+
+    /**
+     * {@link ByteArrayOutputStream} that exposes its content without copying and is reused for
+     * later payloads once released.
+     */
+    static final class CompressedBuffer extends ByteArrayOutputStream {
+
+        private final InsertCompression owner;
+
+        private CompressedBuffer(InsertCompression owner) {
+            super(INITIAL_CAPACITY);
+            this.owner = owner;
+        }
+
+        /**
+         * @return a byte buffer over the compressed bytes, backed by this buffer's array
+         */
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        /**
+         * Resets this buffer and returns it to the pool, unless it grew beyond the retained capacity.
+         * The buffer must not be used after release.
+         */
+        void release() {
+            reset();
+            if (buf.length <= MAX_RETAINED_CAPACITY) {
+                owner.pool.offer(this);
+            }
+        }
+    }
+}
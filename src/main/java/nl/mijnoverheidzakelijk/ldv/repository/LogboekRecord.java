@@ -0,0 +1,36 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A stored processing record as read back from ClickHouse.
+ *
+ * @param traceId              the trace id
+ * @param spanId               the span id
+ * @param parentSpanId         the parent span id, all zeros for a root span
+ * @param name                 the span name
+ * @param status               the span status code
+ * @param service              the service that logged the processing
+ * @param startTime            start of the processing
+ * @param endTime              end of the processing
+ * @param processingActivityId the processing activity id
+ * @param dataSubjectId        the data subject id, empty if not set
+ * @param dataSubjectType      the type of the data subject id, empty if not set
+ * @param attributes           all span attributes
+ */
+public record LogboekRecord(
+        String traceId,
+        String spanId,
+        String parentSpanId,
+        String name,
+        String status,
+        String service,
+        Instant startTime,
+        Instant endTime,
+        String processingActivityId,
+        String dataSubjectId,
+        String dataSubjectType,
+        Map<String, String> attributes
+) {
+}
@@ -0,0 +1,66 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import java.util.Locale;
+
+/**
+ * Column layouts of the {@code RowBinary} rows written by the versions of this library.
+ * <p>
+ * {@code RowBinary} carries no column names, so rows are inserted with the explicit column list of
+ * the layout they were written with. Columns missing from an older layout get their default, which
+ * for the {@code dpl.core.*} columns is the matching entry of the attribute map. Rows kept in the
+ * spool or in archived files therefore stay loadable after the table gained columns.
+ */
+public enum RowBinaryLayout {
+
+    /**
+     * Spans with their resource inline.
+     */
+    BASE("traceId, spanId, status, name, startTime, endTime, parentSpanId, attributes, resource, service"),
+
+    /**
+     * Adds the {@code resourceId} of the resources table.
+     */
+    RESOURCE_ID("traceId, spanId, status, name, startTime, endTime, parentSpanId, attributes, resource, service, " +
+            "resourceId"),
+
+    /**
+     * Adds the dedicated {@code dpl.core.*} columns and the typed attribute maps.
+     */
+    TYPED_ATTRIBUTES("traceId, spanId, status, name, startTime, endTime, parentSpanId, attributes, resource, service, " +
+            "resourceId, processingActivityId, dataSubjectId, dataSubjectType, foreignOperationSpanId, " +
+            "foreignOperationProcessor, longAttributes, doubleAttributes, boolAttributes");
+
+    /**
+     * The layout written by this version.
+     */
+    public static final RowBinaryLayout CURRENT = TYPED_ATTRIBUTES;
+
+    private final String columns;
+
+    RowBinaryLayout(String columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @return the comma separated columns of a row, in order
+     */
+    public String columns() {
+        return columns;
+    }
+
+    /**
+     * @return the name used in file names and options, e.g. {@code resource-id}
+     */
+    public String label() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    /**
+     * @param value a label as returned by {@link #label()}
+     * @return the layout
+     * @throws IllegalArgumentException if the value is not a layout
+     */
+    public static RowBinaryLayout parse(String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
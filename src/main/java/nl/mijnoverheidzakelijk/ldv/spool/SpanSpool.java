@@ -0,0 +1,447 @@
+package nl.mijnoverheidzakelijk.ldv.spool;
+
+import com.clickhouse.data.ClickHouseFormat;
+import nl.mijnoverheidzakelijk.ldv.repository.RowBinaryLayout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Durable, segment-based write-ahead spool for encoded span batches.
+ * <p>
+ * Batches are appended to memory-mapped segment files and shipped asynchronously by a
+ * background drainer thread, which retries failed inserts with exponential backoff. A segment
+ * file is deleted only after every record in it has been confirmed by the {@link Sink}.
+ * Records that were not yet confirmed when the process stopped are recovered from the spool
+ * directory on the next start and shipped again.
+ * <p>
+ * An appended record survives a crash of the JVM as soon as {@link #append} returns, since it
+ * is written to the page cache. Whether it also survives power loss or a crash of the operating
+ * system depends on the {@link FsyncPolicy}: with {@link FsyncPolicy#ALWAYS} every append is
+ * flushed to storage before it returns, with {@link FsyncPolicy#INTERVAL} at most the records of
+ * the last interval can be lost, and with {@link FsyncPolicy#NEVER} the operating system decides
+ * when records reach storage.
+ * <p>
+ * A record the sink rejects with a {@link RejectedBatchException}, or that cannot be decoded, is
+ * moved to the {@code quarantine} subdirectory instead of being retried, so it does not block
+ * the records behind it. Quarantined files are named after their format ({@code .ndjson}, or
+ * {@code .<layout>.rowbinary} with the {@link RowBinaryLayout} of the rows) and can be inspected and
+ * loaded manually.
+ * <p>
+ * Segments written by an earlier version are still shipped: their {@code RowBinary} records are
+ * handed to the sink with the layout of that version.
+ */
+public final class SpanSpool implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(SpanSpool.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".ldv";
+    private static final String QUARANTINE_DIRECTORY = "quarantine";
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+    /**
+     * When appended records are flushed from the page cache to storage.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Flush every record before {@link #append} returns.
+         */
+        ALWAYS,
+        /**
+         * Flush the records appended in the last interval periodically.
+         */
+        INTERVAL,
+        /**
+         * Only flush when a segment is full or the spool is closed.
+         */
+        NEVER;
+
+        /**
+         * @param value {@code always}, {@code interval} or {@code never}, case-insensitive
+         * @return the policy
+         * @throws IllegalArgumentException if the value is not a policy
+         */
+        public static FsyncPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Destination for spooled batches, typically an insert into ClickHouse.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * Ships one batch. Returning normally confirms the batch; throwing causes a retry, unless
+         * the exception is a {@link RejectedBatchException}.
+         *
+         * @param format  the format the batch was encoded in
+         * @param layout  the columns of the rows if the format is {@code RowBinary}
+         * @param payload the encoded batch, backed by the segment mapping
+         * @throws RejectedBatchException if the batch can never be delivered and must be quarantined
+         * @throws Exception              if the batch could not be delivered and should be retried
+         */
+        void ship(ClickHouseFormat format, RowBinaryLayout layout, ByteBuffer payload) throws Exception;
+    }
+
+    /**
+     * Thrown by a {@link Sink} for a batch that will fail on every retry, e.g. because the server
+     * cannot parse it.
+     */
+    public static final class RejectedBatchException extends Exception {
+
+        /**
+         * @param message the reason
+         * @param cause   the underlying failure
+         */
+        public RejectedBatchException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final long maxBackoffMillis;
+    private final FsyncPolicy fsyncPolicy;
+    private final Sink sink;
+
+    private final Object lock = new Object();
+    private final Deque<SpoolSegment> segments = new ArrayDeque<>();
+    private final Thread drainer;
+    private final ScheduledExecutorService syncer;
+
+    private SpoolSegment active;
+    private long nextSequence;
+    private long totalSize;
+    private volatile boolean closed;
+
+    /**
+     * Opens the spool in the given directory, recovering any segments left by a previous run,
+     * and starts the drainer thread.
+     *
+     * @param directory        directory holding the segment files
+     * @param segmentSize      size in bytes of a newly created segment
+     * @param maxSize          maximum total size in bytes of all segments
+     * @param maxBackoffMillis upper bound for the delay between retries of a failed batch
+     * @param fsyncPolicy      when appended records are flushed to storage
+     * @param fsyncIntervalMillis interval between flushes with {@link FsyncPolicy#INTERVAL}
+     * @param sink             destination for spooled batches
+     * @throws IOException if the directory or existing segments cannot be read
+     */
+    public SpanSpool(Path directory, int segmentSize, long maxSize, long maxBackoffMillis, FsyncPolicy fsyncPolicy,
+                     long fsyncIntervalMillis, Sink sink) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.sink = sink;
+
+        Files.createDirectories(directory);
+        recover();
+
+        this.drainer = new Thread(this::drain, "ldv-spool-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ldv-spool-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncer.scheduleWithFixedDelay(this::syncActive, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Appends an encoded batch to the spool.
+     *
+     * @param format  the format of the payload
+     * @param payload array holding the payload
+     * @param offset  start of the payload in the array
+     * @param length  length of the payload
+     * @return {@code false} if the spool is closed or appending would exceed the configured maximum size
+     * @throws IOException if a new segment cannot be created
+     */
+    public boolean append(ClickHouseFormat format, byte[] payload, int offset, int length) throws IOException {
+        byte formatCode = formatCode(format);
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            if (active == null || !active.append(formatCode, payload, offset, length)) {
+                int capacity = Math.max(segmentSize, SpoolSegment.HEADER_SIZE + SpoolSegment.recordSize(length));
+                if (totalSize + capacity > maxSize) {
+                    return false;
+                }
+                if (active != null) {
+                    active.seal();
+                }
+                active = SpoolSegment.create(segmentPath(nextSequence), nextSequence++, capacity);
+                segments.addLast(active);
+                totalSize += capacity;
+                active.append(formatCode, payload, offset, length);
+            }
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                active.sync();
+            }
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * @return the total size in bytes of all segment files currently held by the spool
+     */
+    public long size() {
+        synchronized (lock) {
+            return totalSize;
+        }
+    }
+
+    /**
+     * Stops the drainer and flushes the active segment. Records that were not yet shipped stay
+     * on disk and are recovered when the spool is opened again.
+     */
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        synchronized (lock) {
+            closed = true;
+            if (active != null) {
+                active.sync();
+            }
+            lock.notifyAll();
+        }
+        drainer.interrupt();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncActive() {
+        SpoolSegment segment;
+        synchronized (lock) {
+            segment = active;
+        }
+        if (segment != null) {
+            try {
+                segment.sync();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to flush spool segment " + segment.path(), e);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.filter(path -> parseSequence(path) >= 0).forEach(files::add);
+        }
+        files.sort((a, b) -> Long.compare(parseSequence(a), parseSequence(b)));
+
+        long recoveredSegments = 0;
+        for (Path file : files) {
+            long sequence = parseSequence(file);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            SpoolSegment segment = SpoolSegment.recover(file, sequence);
+            if (segment == null) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid spool segment {0}", file);
+                continue;
+            }
+            if (segment.isDrained()) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            segments.addLast(segment);
+            totalSize += segment.capacity();
+            recoveredSegments++;
+        }
+        if (recoveredSegments > 0) {
+            LOGGER.log(Level.INFO, "Recovered {0} spool segment(s) with unsent records from {1}",
+                    new Object[]{recoveredSegments, directory});
+        }
+    }
+
+    private void drain() {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (true) {
+            SpoolSegment segment;
+            try {
+                segment = nextPendingSegment();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (segment == null) {
+                return;
+            }
+
+            try {
+                ClickHouseFormat format = formatFor(segment.pendingFormat());
+                if (format == null) {
+                    throw new RejectedBatchException("Unknown spool format code " + segment.pendingFormat(), null);
+                }
+                sink.ship(format, layoutOf(segment), segment.pendingPayload());
+                segment.acknowledge();
+                backoff = INITIAL_BACKOFF_MILLIS;
+            } catch (RejectedBatchException e) {
+                if (!quarantine(segment, e)) {
+                    if (!sleep(backoff)) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, maxBackoffMillis);
+                    continue;
+                }
+                backoff = INITIAL_BACKOFF_MILLIS;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to ship spooled batch, retrying in " + backoff + " ms", e);
+                if (!sleep(backoff)) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, maxBackoffMillis);
+                continue;
+            }
+            removeIfDrained(segment);
+        }
+    }
+
+    /**
+     * Copies the record at the read position of a segment to the quarantine directory and
+     * acknowledges it, so the drainer moves on to the next record.
+     *
+     * @return {@code false} if the record could not be copied and stays pending
+     */
+    private boolean quarantine(SpoolSegment segment, RejectedBatchException reason) {
+        ClickHouseFormat format = formatFor(segment.pendingFormat());
+        String extension = format == ClickHouseFormat.JSONEachRow ? ".ndjson"
+                : format == ClickHouseFormat.RowBinary ? "." + layoutOf(segment).label() + ".rowbinary" : ".bin";
+        Path file = directory.resolve(QUARANTINE_DIRECTORY)
+                .resolve(String.format("%020d-%010d", segment.sequence(), segment.pendingPosition()) + extension);
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer payload = segment.pendingPayload();
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to quarantine spooled batch to " + file + ", retrying", e);
+            return false;
+        }
+        LOGGER.log(Level.SEVERE, "Spooled batch was rejected and moved to " + file, reason);
+        segment.acknowledge();
+        return true;
+    }
+
+    /**
+     * Blocks until a segment with an unsent record is available.
+     *
+     * @return the segment, or {@code null} once the spool is closed
+     */
+    private SpoolSegment nextPendingSegment() throws InterruptedException {
+        synchronized (lock) {
+            while (!closed) {
+                for (SpoolSegment segment : segments) {
+                    if (segment.hasPending()) {
+                        return segment;
+                    }
+                }
+                lock.wait();
+            }
+            return null;
+        }
+    }
+
+    private void removeIfDrained(SpoolSegment segment) {
+        synchronized (lock) {
+            if (!segment.isDrained()) {
+                return;
+            }
+            segments.remove(segment);
+            totalSize -= segment.capacity();
+        }
+        try {
+            Files.deleteIfExists(segment.path());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete drained spool segment " + segment.path(), e);
+        }
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return !closed;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%020d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private static long parseSequence(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the layout of the {@code RowBinary} records of a segment, by the version that wrote it
+     */
+    private static RowBinaryLayout layoutOf(SpoolSegment segment) {
+        return segment.version() == 1 ? RowBinaryLayout.RESOURCE_ID : RowBinaryLayout.TYPED_ATTRIBUTES;
+    }
+
+    private static byte formatCode(ClickHouseFormat format) {
+        return switch (format) {
+            case JSONEachRow -> 1;
+            case RowBinary -> 2;
+            default -> throw new IllegalArgumentException("Unsupported spool format: " + format);
+        };
+    }
+
+    /**
+     * @return the format of a format code, or {@code null} if the code is unknown
+     */
+    private static ClickHouseFormat formatFor(byte code) {
+        return switch (code) {
+            case 1 -> ClickHouseFormat.JSONEachRow;
+            case 2 -> ClickHouseFormat.RowBinary;
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,229 @@
+package nl.mijnoverheidzakelijk.ldv.spool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single memory-mapped spool file holding a sequence of records.
+ * <p>
+ * Layout: an 8 byte header (magic, version) followed by records of the form
+ * {@code [int length][byte state][byte format][payload]}. The state byte is written last,
+ * so a record only becomes visible to the drainer and to crash recovery once it is
+ * complete. A zero state marks the end of the written data.
+ * <p>
+ * The version tells how the records were encoded: segments of version 1 were written before the
+ * typed attribute columns, so their {@code RowBinary} records hold fewer columns. Recovered
+ * segments keep their version.
+ */
+final class SpoolSegment {
+
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 6;
+
+    static final byte STATE_EMPTY = 0;
+    static final byte STATE_PENDING = 1;
+    static final byte STATE_ACKED = 2;
+
+    private static final int MAGIC = 0x4C445653; // "LDVS"
+    static final int VERSION = 2;
+    private static final int FIRST_VERSION = 1;
+
+    private final long sequence;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int version;
+
+    private volatile int writePosition;
+    private int readPosition;
+    private int syncedPosition;
+    private volatile boolean sealed;
+
+    private SpoolSegment(long sequence, Path path, MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.path = path;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * Creates and maps a new, empty segment file.
+     */
+    static SpoolSegment create(Path path, long sequence, int capacity) throws IOException {
+        SpoolSegment segment = new SpoolSegment(sequence, path, map(path, capacity, true));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.version = VERSION;
+        segment.writePosition = HEADER_SIZE;
+        segment.readPosition = HEADER_SIZE;
+        segment.buffer.force(0, HEADER_SIZE);
+        segment.syncedPosition = HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Maps an existing segment file left behind by a previous run and scans it to restore the
+     * write position and the first record that was not yet acknowledged. Recovered segments are
+     * sealed and never appended to again.
+     *
+     * @return the recovered segment, or {@code null} if the file is not a valid segment
+     */
+    static SpoolSegment recover(Path path, long sequence) throws IOException {
+        long size = Files.size(path);
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        SpoolSegment segment = new SpoolSegment(sequence, path, map(path, (int) size, false));
+        int version = segment.buffer.getInt(4);
+        if (segment.buffer.getInt(0) != MAGIC || version < FIRST_VERSION || version > VERSION) {
+            return null;
+        }
+        segment.version = version;
+
+        int position = HEADER_SIZE;
+        int firstPending = -1;
+        while (position + RECORD_HEADER_SIZE <= segment.capacity) {
+            int length = segment.buffer.getInt(position);
+            byte state = segment.buffer.get(position + 4);
+            if (state == STATE_EMPTY || length < 0 || position + RECORD_HEADER_SIZE + length > segment.capacity) {
+                break;
+            }
+            if (state == STATE_PENDING && firstPending < 0) {
+                firstPending = position;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+        segment.syncedPosition = position;
+        segment.readPosition = firstPending < 0 ? position : firstPending;
+        segment.sealed = true;
+        return segment;
+    }
+
+    /**
+     * @return the number of bytes a record with the given payload size occupies
+     */
+    static int recordSize(int payloadLength) {
+        return RECORD_HEADER_SIZE + payloadLength;
+    }
+
+    /**
+     * Appends a record if it fits in the remaining space. Must only be called by a single writer.
+     *
+     * @return {@code true} if the record was written
+     */
+    boolean append(byte format, byte[] payload, int offset, int length) {
+        int position = writePosition;
+        if (sealed || position + recordSize(length) > capacity) {
+            return false;
+        }
+        buffer.put(position + RECORD_HEADER_SIZE, payload, offset, length);
+        buffer.putInt(position, length);
+        buffer.put(position + 5, format);
+        buffer.put(position + 4, STATE_PENDING);
+        writePosition = position + recordSize(length);
+        return true;
+    }
+
+    /**
+     * @return {@code true} if a written record has not yet been handed to the drainer
+     */
+    boolean hasPending() {
+        return readPosition < writePosition;
+    }
+
+    /**
+     * @return {@code true} if the segment is sealed and every record has been acknowledged
+     */
+    boolean isDrained() {
+        return sealed && readPosition >= writePosition;
+    }
+
+    /**
+     * @return the offset of the record at the read position within the file
+     */
+    int pendingPosition() {
+        return readPosition;
+    }
+
+    /**
+     * @return the format code of the record at the read position
+     */
+    byte pendingFormat() {
+        return buffer.get(readPosition + 5);
+    }
+
+    /**
+     * @return the payload of the record at the read position, backed by the mapping
+     */
+    ByteBuffer pendingPayload() {
+        int length = buffer.getInt(readPosition);
+        return buffer.slice(readPosition + RECORD_HEADER_SIZE, length);
+    }
+
+    /**
+     * Marks the record at the read position as acknowledged and advances to the next one.
+     */
+    void acknowledge() {
+        int length = buffer.getInt(readPosition);
+        buffer.put(readPosition + 4, STATE_ACKED);
+        readPosition += recordSize(length);
+    }
+
+    /**
+     * Seals the segment against further appends and flushes it to storage.
+     */
+    void seal() {
+        sealed = true;
+        sync();
+    }
+
+    /**
+     * Flushes the records appended since the previous call to storage. Safe to call concurrently
+     * with {@link #append}; records appended while the flush runs are flushed by the next call.
+     */
+    synchronized void sync() {
+        int position = writePosition;
+        if (position > syncedPosition) {
+            buffer.force(syncedPosition, position - syncedPosition);
+            syncedPosition = position;
+        }
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * @return the version of the encoding of the records
+     */
+    int version() {
+        return version;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    private static MappedByteBuffer map(Path path, int capacity, boolean create) throws IOException {
+        StandardOpenOption[] options = create
+                ? new StandardOpenOption[]{StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package nl.mijnoverheidzakelijk.ldv.config;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads the keys of {@code META-INF/microprofile-config.properties} in the test resources.
+ */
+class LdvSettingsTest {
+
+    @Test
+    void readsDefaultPipeline() throws ConfigurationException {
+        LdvSettings settings = LdvSettings.load();
+
+        assertEquals("logboek", settings.serviceName());
+        assertEquals(List.of("http://clickhouse-1:8123", "http://clickhouse-2:8123"), settings.clickHouse().endpoints());
+        assertEquals(4096, settings.batch().maxQueueSize());
+        assertEquals(Path.of("/var/lib/ldv/spool"), settings.spool().directory());
+        assertEquals(Path.of("/var/lib/ldv/spans"), settings.exporter().fileDirectory());
+        assertSame(settings, settings.pipeline(""));
+    }
+
+    @Test
+    void namedPipelineOverridesAndInheritsKeys() throws ConfigurationException {
+        LdvSettings vergunningen = LdvSettings.load().pipeline("vergunningen");
+
+        assertEquals("vergunningen", vergunningen.pipeline());
+        assertEquals("vergunningen", vergunningen.serviceName());
+        assertEquals("vergunningen_logboek", vergunningen.clickHouse().table());
+        assertEquals(8192, vergunningen.batch().maxQueueSize());
+        assertEquals(List.of("http://clickhouse-1:8123", "http://clickhouse-2:8123"), vergunningen.clickHouse().endpoints());
+        assertEquals("geheim", vergunningen.clickHouse().password());
+        assertEquals(Map.of("activiteit-1", "drop", "activiteit-2", "rate:5"), vergunningen.sampling().activityPolicies());
+    }
+
+    @Test
+    void namedPipelineGetsOwnSubdirectoryOfInheritedDirectories() throws ConfigurationException {
+        LdvSettings settings = LdvSettings.load();
+
+        assertEquals(Path.of("/var/lib/ldv/spool/pipeline-vergunningen"), settings.pipeline("vergunningen").spool().directory());
+        assertEquals(Path.of("/var/lib/ldv/spans/pipeline-vergunningen"), settings.pipeline("vergunningen").exporter().fileDirectory());
+        assertEquals(Path.of("/var/lib/ldv/subsidies-spool"), settings.pipeline("subsidies").spool().directory());
+    }
+
+    @Test
+    void rejectsUnknownPipeline() {
+        assertThrows(ConfigurationException.class, () -> LdvSettings.load().pipeline("onbekend"));
+    }
+
+    @Test
+    void usesDefaultsForAbsentKeys() throws ConfigurationException {
+        LdvSettings settings = LdvSettings.load();
+
+        assertEquals(8, settings.clickHouse().requestThreads());
+        assertEquals("drop-oldest-non-audit", settings.queue().overflowPolicy());
+        assertTrue(settings.enabled());
+    }
+
+    @Test
+    void rejectsInvalidValues() {
+        for (String value : List.of("acht", "0", "-1")) {
+            System.setProperty("logboekdataverwerking.clickhouse.request-threads", value);
+            try {
+                assertThrows(ConfigurationException.class, LdvSettings::load, value);
+            } finally {
+                System.clearProperty("logboekdataverwerking.clickhouse.request-threads");
+            }
+        }
+    }
+
+    @Test
+    void masksPassword() throws ConfigurationException {
+        String clickHouse = LdvSettings.load().clickHouse().toString();
+
+        assertFalse(clickHouse.contains("geheim"));
+        assertTrue(clickHouse.contains("password=****"));
+    }
+}
@@ -0,0 +1,51 @@
+package nl.mijnoverheidzakelijk.ldv.config;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SamplingPolicyTest {
+
+    @Test
+    void parsesPoliciesCaseInsensitively() throws ConfigurationException {
+        assertSame(SamplingPolicy.KEEP, SamplingPolicy.parse("keep"));
+        assertSame(SamplingPolicy.KEEP, SamplingPolicy.parse("KEEP"));
+        assertSame(SamplingPolicy.DROP, SamplingPolicy.parse(" Drop "));
+        assertInstanceOf(SamplingPolicy.RateLimited.class, SamplingPolicy.parse("Rate:10"));
+        assertSame(SamplingPolicy.KEEP, SamplingPolicy.parse("RATIO:1"));
+    }
+
+    @Test
+    void ratioOutsideUnitIntervalKeepsOrDropsAll() throws ConfigurationException {
+        assertSame(SamplingPolicy.KEEP, SamplingPolicy.parse("ratio:1.5"));
+        assertSame(SamplingPolicy.DROP, SamplingPolicy.parse("ratio:0"));
+        assertSame(SamplingPolicy.DROP, SamplingPolicy.parse("ratio:-1"));
+    }
+
+    @Test
+    void rejectsInvalidPolicies() {
+        assertThrows(ConfigurationException.class, () -> SamplingPolicy.parse("sometimes"));
+        assertThrows(ConfigurationException.class, () -> SamplingPolicy.parse("ratio:half"));
+        assertThrows(ConfigurationException.class, () -> SamplingPolicy.parse("rate:"));
+    }
+
+    @Test
+    void rejectsRatesThatAreNotPositive() {
+        assertThrows(ConfigurationException.class, () -> SamplingPolicy.parse("rate:0"));
+        assertThrows(ConfigurationException.class, () -> SamplingPolicy.parse("rate:-5"));
+        assertThrows(ConfigurationException.class, () -> SamplingPolicy.parse("rate:NaN"));
+    }
+
+    @Test
+    void rateLimitAllowsBurstOfOneSecond() throws ConfigurationException {
+        SamplingPolicy policy = SamplingPolicy.parse("rate:2");
+        assertTrue(policy.sample(null));
+        assertTrue(policy.sample(null));
+        assertFalse(policy.sample(null));
+    }
+}
@@ -0,0 +1,197 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.testing.trace.TestSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveBatchingSpanExporterTest {
+
+    private static final long NO_LINGER = TimeUnit.HOURS.toMillis(1);
+
+    private final RecordingExporter delegate = new RecordingExporter();
+
+    @Test
+    void completesHeldBackBatchWithResultOfMergedExport() throws InterruptedException {
+        AdaptiveBatchingSpanExporter exporter = startMerging(new AdaptiveBatchingSpanExporter(delegate, 2, 8, NO_LINGER));
+
+        CompletableResultCode held = exporter.export(spans(2));
+        assertFalse(held.isDone());
+        assertNull(delegate.exports.poll());
+
+        CompletableResultCode merged = exporter.export(spans(1));
+        Export export = delegate.exports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(export);
+        assertEquals(3, export.spans().size());
+        assertFalse(held.isDone());
+
+        export.result().succeed();
+        assertTrue(merged.isSuccess());
+        assertTrue(held.isDone());
+        assertTrue(held.isSuccess());
+        exporter.shutdown();
+    }
+
+    @Test
+    void failsHeldBackBatchWhenMergedExportFails() throws InterruptedException {
+        AdaptiveBatchingSpanExporter exporter = startMerging(new AdaptiveBatchingSpanExporter(delegate, 2, 8, NO_LINGER));
+
+        CompletableResultCode first = exporter.export(spans(2));
+        exporter.export(spans(2));
+        Export export = delegate.exports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(export);
+        assertEquals(4, export.spans().size());
+
+        CompletableResultCode second = exporter.export(spans(2));
+        exporter.export(spans(1));
+        Export next = delegate.exports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(next);
+        assertEquals(3, next.spans().size());
+
+        export.result().fail();
+        assertTrue(first.isDone());
+        assertFalse(first.isSuccess());
+        assertFalse(second.isDone());
+
+        next.result().succeed();
+        assertTrue(second.isSuccess());
+        exporter.shutdown();
+    }
+
+    @Test
+    void flushExportsHeldBackSpans() throws InterruptedException {
+        AdaptiveBatchingSpanExporter exporter = startMerging(new AdaptiveBatchingSpanExporter(delegate, 2, 8, NO_LINGER));
+
+        CompletableResultCode held = exporter.export(spans(2));
+        assertNull(delegate.exports.poll());
+        exporter.flush();
+        Export export = delegate.exports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(export);
+        assertEquals(2, export.spans().size());
+
+        export.result().succeed();
+        assertTrue(held.isSuccess());
+        exporter.shutdown();
+    }
+
+    @Test
+    void exportsHeldBackSpansAfterLinger() throws InterruptedException {
+        AdaptiveBatchingSpanExporter exporter = startMerging(new AdaptiveBatchingSpanExporter(delegate, 2, 8, 20));
+
+        CompletableResultCode held = exporter.export(spans(2));
+        Export export = delegate.exports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(export);
+        assertEquals(2, export.spans().size());
+
+        export.result().succeed();
+        assertTrue(held.isSuccess());
+        exporter.shutdown();
+    }
+
+    @Test
+    void doesNotHoldMonitorWhileDelegateExports() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SpanExporter blocking = new RecordingExporter() {
+            @Override
+            public CompletableResultCode export(Collection<SpanData> spans) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return CompletableResultCode.ofSuccess();
+            }
+        };
+        AdaptiveBatchingSpanExporter exporter = new AdaptiveBatchingSpanExporter(blocking, 2, 8, NO_LINGER);
+        Thread exporting = new Thread(() -> exporter.export(spans(1)));
+        exporting.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        CompletableResultCode flushed = CompletableFuture.supplyAsync(exporter::flush).get(5, TimeUnit.SECONDS);
+        assertTrue(flushed.isSuccess());
+
+        release.countDown();
+        exporting.join();
+        exporter.shutdown();
+    }
+
+    /**
+     * Exports one full batch, which goes out directly and doubles the merge target, so the next
+     * full batch is held back.
+     */
+    private AdaptiveBatchingSpanExporter startMerging(AdaptiveBatchingSpanExporter exporter) throws InterruptedException {
+        exporter.export(spans(2));
+        Export export = delegate.exports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(export);
+        export.result().succeed();
+        return exporter;
+    }
+
+    private static List<SpanData> spans(int count) {
+        List<SpanData> spans = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            spans.add(TestSpanData.builder()
+                    .setSpanContext(SpanContext.create("0af7651916cd43dd8448eb211c80319c", String.format("%016x", i + 1),
+                            TraceFlags.getSampled(), TraceState.getDefault()))
+                    .setName("span-" + i)
+                    .setKind(SpanKind.INTERNAL)
+                    .setStartEpochNanos(1)
+                    .setEndEpochNanos(2)
+                    .setStatus(StatusData.ok())
+                    .setHasEnded(true)
+                    .build());
+        }
+        return spans;
+    }
+
+    private record Export(Collection<SpanData> spans, CompletableResultCode result) {
+    }
+
+    /**
+     * Records every export and leaves its result to the test.
+     */
+    private static class RecordingExporter implements SpanExporter {
+
+        final BlockingQueue<Export> exports = new LinkedBlockingQueue<>();
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            CompletableResultCode result = new CompletableResultCode();
+            exports.add(new Export(List.copyOf(spans), result));
+            return result;
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MpmcRingBufferTest {
+
+    @Test
+    void pollsInOfferOrder() {
+        MpmcRingBuffer<Integer> buffer = new MpmcRingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void roundsCapacityUpToPowerOfTwo() {
+        MpmcRingBuffer<Integer> buffer = new MpmcRingBuffer<>(5);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(8));
+    }
+
+    @Test
+    void acceptsElementsAgainAfterPolling() {
+        MpmcRingBuffer<Integer> buffer = new MpmcRingBuffer<>(2);
+        for (int lap = 0; lap < 10; lap++) {
+            assertTrue(buffer.offer(2 * lap));
+            assertTrue(buffer.offer(2 * lap + 1));
+            assertFalse(buffer.offer(-1));
+            assertEquals(2 * lap, buffer.poll());
+            assertEquals(2 * lap + 1, buffer.poll());
+            assertNull(buffer.poll());
+        }
+    }
+
+    @Test
+    void deliversEveryElementOnceWithConcurrentProducers() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 10_000;
+        MpmcRingBuffer<Integer> buffer = new MpmcRingBuffer<>(64);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = first; i < first + perProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        Set<Integer> received = new HashSet<>();
+        int[] lastOfProducer = new int[producers];
+        Arrays.fill(lastOfProducer, -1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received.size() < producers * perProducer && System.nanoTime() < deadline) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertTrue(received.add(element), "duplicate " + element);
+            int producer = element / perProducer;
+            assertTrue(element > lastOfProducer[producer], "out of order " + element);
+            lastOfProducer[producer] = element;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, received.size());
+        assertNull(buffer.poll());
+    }
+}
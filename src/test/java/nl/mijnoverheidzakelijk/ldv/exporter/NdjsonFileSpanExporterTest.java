@@ -0,0 +1,120 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.testing.trace.TestSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NdjsonFileSpanExporterTest {
+
+    private static final long NO_ROTATION = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendsToActiveFileBelowLimits() throws Exception {
+        NdjsonFileSpanExporter exporter = exporter(1024 * 1024, NO_ROTATION);
+
+        assertTrue(exporter.export(List.of(span("a"), span("b"))).isSuccess());
+        assertTrue(exporter.export(List.of(span("c"))).isSuccess());
+
+        assertEquals(List.of(), files(NdjsonFileSpanExporter.SUFFIX));
+        List<Path> active = files(NdjsonFileSpanExporter.ACTIVE_SUFFIX);
+        assertEquals(1, active.size());
+        assertEquals(3, Files.readAllLines(active.get(0)).size());
+    }
+
+    @Test
+    void rotatesBeforeFileWouldExceedMaxSize() throws Exception {
+        NdjsonFileSpanExporter exporter = exporter(1, NO_ROTATION);
+
+        for (String name : List.of("a", "b", "c")) {
+            assertTrue(exporter.export(List.of(span(name))).isSuccess());
+        }
+
+        List<Path> completed = files(NdjsonFileSpanExporter.SUFFIX);
+        assertEquals(2, completed.size());
+        for (Path file : completed) {
+            assertEquals(1, Files.readAllLines(file).size());
+        }
+        assertEquals(1, files(NdjsonFileSpanExporter.ACTIVE_SUFFIX).size());
+    }
+
+    @Test
+    void rotatesAfterInterval() throws Exception {
+        NdjsonFileSpanExporter exporter = exporter(1024 * 1024, 1);
+
+        assertTrue(exporter.export(List.of(span("a"))).isSuccess());
+        Thread.sleep(10);
+        assertTrue(exporter.export(List.of(span("b"))).isSuccess());
+
+        assertEquals(1, files(NdjsonFileSpanExporter.SUFFIX).size());
+        assertEquals(1, files(NdjsonFileSpanExporter.ACTIVE_SUFFIX).size());
+    }
+
+    @Test
+    void completesActiveFileOnShutdown() throws Exception {
+        NdjsonFileSpanExporter exporter = exporter(1024 * 1024, NO_ROTATION);
+        assertTrue(exporter.export(List.of(span("a"), span("b"))).isSuccess());
+
+        assertTrue(exporter.shutdown().isSuccess());
+
+        assertEquals(List.of(), files(NdjsonFileSpanExporter.ACTIVE_SUFFIX));
+        List<Path> completed = files(NdjsonFileSpanExporter.SUFFIX);
+        assertEquals(1, completed.size());
+        assertEquals(2, Files.readAllLines(completed.get(0)).size());
+        assertFalse(exporter.export(List.of(span("c"))).isSuccess());
+    }
+
+    private NdjsonFileSpanExporter exporter(long maxFileSize, long rotateIntervalMillis) throws ConfigurationException {
+        return new NdjsonFileSpanExporter(new LdvSettings.Exporter("file", 1, directory, maxFileSize, rotateIntervalMillis, 0),
+                LdvMetrics.noop());
+    }
+
+    /**
+     * @param suffix the suffix of completed or active files
+     * @return the files with exactly that suffix, sorted by name
+     */
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(suffix)
+                            && (suffix.equals(NdjsonFileSpanExporter.ACTIVE_SUFFIX)
+                            || !file.getFileName().toString().endsWith(NdjsonFileSpanExporter.ACTIVE_SUFFIX)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static SpanData span(String name) {
+        return TestSpanData.builder()
+                .setSpanContext(SpanContext.create("0af7651916cd43dd8448eb211c80319c", "b7ad6b7169203331",
+                        TraceFlags.getSampled(), TraceState.getDefault()))
+                .setName(name)
+                .setKind(SpanKind.INTERNAL)
+                .setStartEpochNanos(1_700_000_000_000_000_000L)
+                .setEndEpochNanos(1_700_000_000_100_000_000L)
+                .setStatus(StatusData.ok())
+                .setHasEnded(true)
+                .build();
+    }
+}
@@ -0,0 +1,198 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.metrics.MeterProvider;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import nl.mijnoverheidzakelijk.ldv.config.LdvSettings;
+import nl.mijnoverheidzakelijk.ldv.logboekdataverwerking.LogboekAttributes;
+import nl.mijnoverheidzakelijk.ldv.metrics.LdvMetrics;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fills the queue of four spans while the exporter blocks on the first batch, so the worker cannot
+ * drain it, and checks what each overflow policy does with the next span.
+ */
+class RingBufferSpanProcessorTest {
+
+    private static final int QUEUE_SIZE = 4;
+    private static final long NO_SCHEDULE = TimeUnit.HOURS.toMillis(1);
+
+    private final BlockingExporter exporter = new BlockingExporter();
+    private final List<List<String>> spilled = new CopyOnWriteArrayList<>();
+    private SdkTracerProvider tracerProvider;
+    private Tracer tracer;
+
+    @AfterEach
+    void shutdown() {
+        exporter.release.countDown();
+        if (tracerProvider != null) {
+            tracerProvider.shutdown().join(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void dropOldestNonAuditEvictsOldestTechnicalSpan() throws Exception {
+        start("drop-oldest-non-audit", 0);
+        fillQueue("technisch-1", "technisch-2", "technisch-3", "technisch-4");
+
+        endProcessingRecord("verwerking");
+
+        assertEquals(List.of("verwerking", "technisch-2", "technisch-3", "technisch-4"), drain());
+    }
+
+    @Test
+    void dropOldestNonAuditDropsTechnicalSpanWhenOnlyProcessingRecordsAreQueued() throws Exception {
+        start("drop-oldest-non-audit", 0);
+        assertTrue(fillFirstBatch());
+        for (int i = 1; i <= QUEUE_SIZE; i++) {
+            endProcessingRecord("verwerking-" + i);
+        }
+
+        end("technisch");
+
+        assertEquals(List.of("verwerking-1", "verwerking-2", "verwerking-3", "verwerking-4"), drain());
+    }
+
+    @Test
+    void blockWaitsForRoomInQueue() throws Exception {
+        start("block", TimeUnit.SECONDS.toMillis(30));
+        fillQueue("technisch-1", "technisch-2", "technisch-3", "technisch-4");
+
+        Thread ending = new Thread(() -> end("wachtend"));
+        ending.start();
+        ending.join(200);
+        assertTrue(ending.isAlive());
+
+        exporter.release.countDown();
+        ending.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(ending.isAlive());
+        assertTrue(drain().contains("wachtend"));
+    }
+
+    @Test
+    void blockDropsSpanAfterTimeout() throws Exception {
+        start("block", 50);
+        fillQueue("technisch-1", "technisch-2", "technisch-3", "technisch-4");
+
+        end("te-laat");
+
+        assertEquals(List.of("technisch-1", "technisch-2", "technisch-3", "technisch-4"), drain());
+    }
+
+    @Test
+    void spillWritesSpanTogetherWithQueuedSpans() throws Exception {
+        start("spill", 0);
+        fillQueue("technisch-1", "technisch-2", "technisch-3", "technisch-4");
+
+        end("overloop");
+
+        assertEquals(List.of(List.of("technisch-1", "technisch-2", "technisch-3", "overloop")), spilled);
+        assertEquals(List.of("technisch-4"), drain());
+    }
+
+    private void start(String overflowPolicy, long blockTimeoutMillis) throws ConfigurationException {
+        LdvSettings settings = new LdvSettings("", "test", true, null,
+                new LdvSettings.Batch(QUEUE_SIZE, QUEUE_SIZE, NO_SCHEDULE, 5_000, false, 0, 0),
+                new LdvSettings.Queue(overflowPolicy, blockTimeoutMillis),
+                null, null, null, null, 5_000, Map.of());
+        RingBufferSpanProcessor processor = new RingBufferSpanProcessor(settings, exporter,
+                spans -> spilled.add(names(spans)), MeterProvider.noop().get("test"), LdvMetrics.noop());
+        tracerProvider = SdkTracerProvider.builder().addSpanProcessor(processor).build();
+        tracer = tracerProvider.get("test");
+    }
+
+    /**
+     * Ends a full batch, which the worker hands to the exporter, and waits until the exporter blocks
+     * on it. Spans ended after this stay queued until the exporter is released.
+     */
+    private boolean fillFirstBatch() throws InterruptedException {
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            end("eerste-batch-" + i);
+        }
+        return exporter.entered.await(5, TimeUnit.SECONDS);
+    }
+
+    private void fillQueue(String... names) throws InterruptedException {
+        assertTrue(fillFirstBatch());
+        for (String name : names) {
+            end(name);
+        }
+    }
+
+    /**
+     * Releases the exporter and flushes the processor.
+     *
+     * @return the names of the spans exported after the first batch
+     */
+    private List<String> drain() {
+        exporter.release.countDown();
+        assertTrue(tracerProvider.forceFlush().join(5, TimeUnit.SECONDS).isSuccess());
+        return exporter.batches.stream()
+                .skip(1)
+                .flatMap(List::stream)
+                .toList();
+    }
+
+    private void end(String name) {
+        tracer.spanBuilder(name).startSpan().end();
+    }
+
+    private void endProcessingRecord(String name) {
+        tracer.spanBuilder(name)
+                .setAttribute(LogboekAttributes.PROCESSING_ACTIVITY_ID, "activiteit-1")
+                .startSpan()
+                .end();
+    }
+
+    private static List<String> names(Collection<SpanData> spans) {
+        return spans.stream().map(SpanData::getName).toList();
+    }
+
+    /**
+     * Records the span names of every batch; blocks in the first export until released.
+     */
+    private static final class BlockingExporter implements SpanExporter {
+
+        final List<List<String>> batches = new CopyOnWriteArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            batches.add(names(spans));
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
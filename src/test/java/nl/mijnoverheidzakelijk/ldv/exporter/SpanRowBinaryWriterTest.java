@@ -0,0 +1,148 @@
+package nl.mijnoverheidzakelijk.ldv.exporter;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.testing.trace.TestSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import nl.mijnoverheidzakelijk.ldv.logboekdataverwerking.LogboekAttributes;
+import nl.mijnoverheidzakelijk.ldv.repository.RowBinaryLayout;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class SpanRowBinaryWriterTest {
+
+    private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+    private static final String SPAN_ID = "b7ad6b7169203331";
+    private static final String PARENT_SPAN_ID = "00f067aa0ba902b7";
+
+    @Test
+    void writesColumnsInOrderOfCurrentLayout() throws IOException {
+        SpanData span = TestSpanData.builder()
+                .setSpanContext(SpanContext.create(TRACE_ID, SPAN_ID, TraceFlags.getSampled(), TraceState.getDefault()))
+                .setParentSpanContext(SpanContext.create(TRACE_ID, PARENT_SPAN_ID, TraceFlags.getSampled(), TraceState.getDefault()))
+                .setName("verwerk-aanvraag")
+                .setKind(SpanKind.INTERNAL)
+                .setStartEpochNanos(1_700_000_000_123_000_000L)
+                .setEndEpochNanos(1_700_000_000_456_000_000L)
+                .setStatus(StatusData.ok())
+                .setHasEnded(true)
+                .setResource(Resource.create(Attributes.builder().put("service.name", "vergunningen").build()))
+                .setAttributes(Attributes.builder()
+                        .put(LogboekAttributes.PROCESSING_ACTIVITY_ID, "activiteit-1")
+                        .put(LogboekAttributes.DATA_SUBJECT_ID, "123456782")
+                        .put(LogboekAttributes.DATA_SUBJECT_ID_TYPE, "BSN")
+                        .put(LogboekAttributes.FOREIGN_OPERATION_SPAN_ID, "c7ad6b7169203331")
+                        .put(LogboekAttributes.FOREIGN_OPERATION_PROCESSOR, "https://example.org")
+                        .put("http.route", "/aanvragen")
+                        .put("http.status_code", 200L)
+                        .put("duration.seconds", 0.5)
+                        .put("cache.hit", true)
+                        .build())
+                .build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SpanRowBinaryWriter(null).write(List.of(span), out);
+        Map<String, Object> row = read(ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN));
+
+        assertEquals(TRACE_ID, row.get("traceId"));
+        assertEquals(SPAN_ID, row.get("spanId"));
+        assertEquals("OK", row.get("status"));
+        assertEquals("verwerk-aanvraag", row.get("name"));
+        assertEquals(1_700_000_000_123L, row.get("startTime"));
+        assertEquals(1_700_000_000_456L, row.get("endTime"));
+        assertEquals(PARENT_SPAN_ID, row.get("parentSpanId"));
+        assertEquals(Map.of("http.route", "/aanvragen"), row.get("attributes"));
+        assertEquals(Map.of("service.name", "vergunningen"), row.get("resource"));
+        assertEquals("vergunningen", row.get("service"));
+        assertNotNull(row.get("resourceId"));
+        assertEquals("activiteit-1", row.get("processingActivityId"));
+        assertEquals("123456782", row.get("dataSubjectId"));
+        assertEquals("BSN", row.get("dataSubjectType"));
+        assertEquals("c7ad6b7169203331", row.get("foreignOperationSpanId"));
+        assertEquals("https://example.org", row.get("foreignOperationProcessor"));
+        assertEquals(Map.of("http.status_code", 200L), row.get("longAttributes"));
+        assertEquals(Map.of("duration.seconds", 0.5), row.get("doubleAttributes"));
+        assertEquals(Map.of("cache.hit", true), row.get("boolAttributes"));
+    }
+
+    /**
+     * Decodes one row, reading each column of {@link RowBinaryLayout#CURRENT} with the type the
+     * schema gives it, and checks that nothing follows the row.
+     */
+    private static Map<String, Object> read(ByteBuffer in) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (String column : RowBinaryLayout.CURRENT.columns().split(", ")) {
+            Object value = switch (column) {
+                case "traceId" -> fixedString(in, 32);
+                case "spanId", "parentSpanId" -> fixedString(in, 16);
+                case "startTime", "endTime", "resourceId" -> in.getLong();
+                case "attributes", "resource" -> map(in, ValueType.STRING);
+                case "longAttributes" -> map(in, ValueType.INT64);
+                case "doubleAttributes" -> map(in, ValueType.FLOAT64);
+                case "boolAttributes" -> map(in, ValueType.BOOL);
+                default -> string(in);
+            };
+            row.put(column, value);
+        }
+        assertFalse(in.hasRemaining(), "bytes after the last column");
+        return row;
+    }
+
+    private enum ValueType { STRING, INT64, FLOAT64, BOOL }
+
+    private static Map<String, Object> map(ByteBuffer in, ValueType type) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long size = varInt(in);
+        for (long i = 0; i < size; i++) {
+            String key = string(in);
+            Object value = switch (type) {
+                case STRING -> string(in);
+                case INT64 -> in.getLong();
+                case FLOAT64 -> in.getDouble();
+                case BOOL -> in.get() != 0;
+            };
+            map.put(key, value);
+        }
+        return map;
+    }
+
+    private static String fixedString(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static String string(ByteBuffer in) {
+        byte[] bytes = new byte[(int) varInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long varInt(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package nl.mijnoverheidzakelijk.ldv.loader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BulkLoaderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void endsChunksAtLastLineBreakWithinChunkSize() throws IOException {
+        List<String> chunks = chunks(16, "{\"a\":1}\n{\"b\":2}\n{\"c\":3}\n");
+
+        assertEquals(List.of("{\"a\":1}\n{\"b\":2}\n", "{\"c\":3}\n"), chunks);
+    }
+
+    @Test
+    void givesLineLongerThanChunkSizeChunkOfItsOwn() throws IOException {
+        List<String> chunks = chunks(8, "{\"a\":1}\n{\"lang\":\"abcdefghijklmnop\"}\n{\"c\":3}\n");
+
+        assertEquals(List.of("{\"a\":1}\n", "{\"lang\":\"abcdefghijklmnop\"}\n", "{\"c\":3}\n"), chunks);
+    }
+
+    @Test
+    void keepsLastLineWithoutLineBreak() throws IOException {
+        List<String> chunks = chunks(12, "{\"a\":1}\n{\"b\":2}");
+
+        assertEquals(List.of("{\"a\":1}\n", "{\"b\":2}"), chunks);
+    }
+
+    @Test
+    void coversWholeFileInOrder() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append("{\"regel\":").append(i).append("}\n");
+        }
+
+        List<String> chunks = chunks(100, content.toString());
+
+        assertEquals(content.toString(), String.join("", chunks));
+        for (String chunk : chunks) {
+            assertEquals('\n', chunk.charAt(chunk.length() - 1));
+        }
+    }
+
+    /**
+     * Splits a file the way the loader does.
+     */
+    private List<String> chunks(int chunkSize, String content) throws IOException {
+        Path file = directory.resolve("spans.ndjson");
+        Files.writeString(file, content);
+        BulkLoader loader = new BulkLoader(null, "logboek", null, null, 1, chunkSize, 0, 1000);
+        List<String> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < channel.size()) {
+                ByteBuffer chunk = loader.nextChunk(channel, position, channel.size());
+                position += chunk.remaining();
+                chunks.add(StandardCharsets.UTF_8.decode(chunk).toString());
+            }
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,196 @@
+package nl.mijnoverheidzakelijk.ldv.logboekdataverwerking;
+
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.CompletionCallback;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.HttpHeaders;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogboekInterceptorTest {
+
+    private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+    private final SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+            .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+            .build();
+    private final ActiveRequest request = new ActiveRequest();
+    private final LogboekInterceptor interceptor = new LogboekInterceptor();
+
+    LogboekInterceptorTest() {
+        interceptor.logboekContext = request;
+        interceptor.headers = proxy(HttpHeaders.class, (method, args) -> null);
+        interceptor.handler = new ProcessingHandler(tracerProvider.get("test"));
+    }
+
+    @AfterEach
+    void shutdown() {
+        tracerProvider.shutdown();
+    }
+
+    @Test
+    void endsSpanWhenCompletionStageCompletes() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        Object result = interceptor.log(invocation(Resource.method("stage"), future));
+        assertSame(future, result);
+        assertTrue(exporter.getFinishedSpanItems().isEmpty());
+
+        future.complete("klaar");
+        SpanData span = finishedSpan();
+        assertEquals("aanvraag", span.getName());
+        assertEquals("activiteit-1", span.getAttributes().get(LogboekAttributes.PROCESSING_ACTIVITY_ID));
+    }
+
+    @Test
+    void tagsSpanWithContextOfInvokingRequest() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        request.active.setDataSubjectId("123456782");
+        request.active.setDataSubjectType("BSN");
+
+        interceptor.log(invocation(Resource.method("stage"), future));
+        // the thread that completes the work serves another request by then
+        request.active = new LogboekContext();
+        request.active.setDataSubjectId("999999990");
+        future.complete("klaar");
+
+        SpanData span = finishedSpan();
+        assertEquals("123456782", span.getAttributes().get(LogboekAttributes.DATA_SUBJECT_ID));
+        assertEquals("BSN", span.getAttributes().get(LogboekAttributes.DATA_SUBJECT_ID_TYPE));
+    }
+
+    @Test
+    void marksSpanAsErrorWhenCompletionStageFails() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        interceptor.log(invocation(Resource.method("stage"), future));
+        future.completeExceptionally(new IllegalStateException("mislukt"));
+
+        assertEquals(StatusCode.ERROR, finishedSpan().getStatus().getStatusCode());
+    }
+
+    @Test
+    void endsSpanWhenAsyncResponseCompletes() throws Exception {
+        AtomicReference<CompletionCallback> callback = new AtomicReference<>();
+        AsyncResponse response = proxy(AsyncResponse.class, (method, args) -> switch (method.getName()) {
+            case "register" -> {
+                callback.set((CompletionCallback) args[0]);
+                yield null;
+            }
+            case "isDone" -> false;
+            default -> null;
+        });
+
+        interceptor.log(invocation(Resource.method("suspended"), null, response));
+        assertTrue(exporter.getFinishedSpanItems().isEmpty());
+        assertNotNull(callback.get());
+
+        callback.get().onComplete(null);
+        assertEquals("activiteit-1", finishedSpan().getAttributes().get(LogboekAttributes.PROCESSING_ACTIVITY_ID));
+    }
+
+    @Test
+    void endsSpanRightAwayWhenAsyncResponseWasAlreadyResumed() throws Exception {
+        AtomicReference<CompletionCallback> callback = new AtomicReference<>();
+        AsyncResponse response = proxy(AsyncResponse.class, (method, args) -> switch (method.getName()) {
+            case "register" -> {
+                callback.set((CompletionCallback) args[0]);
+                yield null;
+            }
+            case "isDone" -> true;
+            default -> null;
+        });
+
+        interceptor.log(invocation(Resource.method("suspended"), null, response));
+        finishedSpan();
+
+        // a late callback does not end the span a second time
+        callback.get().onComplete(null);
+        assertEquals(1, exporter.getFinishedSpanItems().size());
+    }
+
+    private SpanData finishedSpan() {
+        List<SpanData> spans = exporter.getFinishedSpanItems();
+        assertEquals(1, spans.size());
+        return spans.get(0);
+    }
+
+    private static InvocationContext invocation(Method method, Object result, Object... parameters) {
+        return proxy(InvocationContext.class, (invoked, args) -> switch (invoked.getName()) {
+            case "getMethod" -> method;
+            case "getParameters" -> parameters;
+            case "proceed" -> result;
+            default -> null;
+        });
+    }
+
+    private interface Handler {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> handler.invoke(method, args)));
+    }
+
+    /**
+     * Stands in for the client proxy of the request-scoped context: it resolves to the context of
+     * whichever request is active on the calling thread.
+     */
+    private static final class ActiveRequest extends LogboekContext {
+
+        LogboekContext active = new LogboekContext();
+
+        @Override
+        LogboekContext self() {
+            return active.self();
+        }
+
+        @Override
+        public String getDataSubjectId() {
+            return active.getDataSubjectId();
+        }
+
+        @Override
+        public String getDataSubjectType() {
+            return active.getDataSubjectType();
+        }
+    }
+
+    @Logboek(name = "aanvraag", processingActivityId = "activiteit-1")
+    private static class Resource {
+
+        static Method method(String name) {
+            for (Method method : Resource.class.getDeclaredMethods()) {
+                if (method.getName().equals(name)) {
+                    return method;
+                }
+            }
+            throw new IllegalArgumentException(name);
+        }
+
+        CompletionStage<String> stage() {
+            return null;
+        }
+
+        void suspended(@Suspended AsyncResponse response) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import com.clickhouse.client.api.Client;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClickHouseNodesTest {
+
+    private static final List<String> ENDPOINTS = List.of("http://clickhouse-1:8123", "http://clickhouse-2:8123", "http://clickhouse-3:8123");
+    private static final long NO_HEALTH_CHECK = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    void countsOnlyFailuresToConnectAsNodeFailures() {
+        assertTrue(ClickHouseNodes.isNodeFailure(new CompletionException(new ConnectException("Connection refused"))));
+        assertTrue(ClickHouseNodes.isNodeFailure(new RuntimeException("Failed to insert", new UnknownHostException("clickhouse-1"))));
+        assertTrue(ClickHouseNodes.isNodeFailure(new NoRouteToHostException("No route to host")));
+        assertTrue(ClickHouseNodes.isNodeFailure(new RuntimeException("Connect to clickhouse-1:8123 failed: Connection refused")));
+
+        assertFalse(ClickHouseNodes.isNodeFailure(new RuntimeException("Code: 60. DB::Exception: Unknown table")));
+        assertFalse(ClickHouseNodes.isNodeFailure(new CompletionException(new IOException("Connection reset"))));
+        assertFalse(ClickHouseNodes.isNodeFailure(new SocketTimeoutException("Read timed out")));
+    }
+
+    @Test
+    void failsOverToAnotherNode() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.ROUND_ROBIN, 3)) {
+            ClickHouseNodes.Node failed = nodes.select(null);
+            for (int i = 0; i < 10; i++) {
+                assertNotSame(failed, nodes.select(failed));
+            }
+        }
+    }
+
+    @Test
+    void spreadsRequestsRoundRobin() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.ROUND_ROBIN, 3)) {
+            Set<String> selected = new HashSet<>();
+            for (int i = 0; i < ENDPOINTS.size(); i++) {
+                selected.add(nodes.select(null).endpoint);
+            }
+            assertEquals(Set.copyOf(ENDPOINTS), selected);
+        }
+    }
+
+    @Test
+    void selectsNodeWithFewestRequestsInFlight() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.LEAST_IN_FLIGHT, 3)) {
+            ClickHouseNodes.Node idle = nodes.select(null);
+            for (int i = 0; i < ENDPOINTS.size(); i++) {
+                ClickHouseNodes.Node node = nodes.select(null);
+                if (node != idle) {
+                    node.inFlight.incrementAndGet();
+                }
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals(idle, nodes.select(null));
+            }
+        }
+    }
+
+    @Test
+    void ejectsNodeAfterConsecutiveFailuresToConnect() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.ROUND_ROBIN, 2)) {
+            ClickHouseNodes.Node node = nodes.select(null);
+            nodes.record(node, new ConnectException("Connection refused"));
+            assertTrue(node.healthy);
+            nodes.record(node, new ConnectException("Connection refused"));
+            assertFalse(node.healthy);
+
+            for (int i = 0; i < 10; i++) {
+                assertNotSame(node, nodes.select(null));
+            }
+        }
+    }
+
+    @Test
+    void doesNotEjectNodeOnOtherErrors() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.ROUND_ROBIN, 2)) {
+            ClickHouseNodes.Node node = nodes.select(null);
+            for (int i = 0; i < 5; i++) {
+                nodes.record(node, new RuntimeException("Code: 60. DB::Exception: Unknown table"));
+                nodes.record(node, new SocketTimeoutException("Read timed out"));
+                nodes.record(node, new IOException("Connection reset"));
+            }
+            assertTrue(node.healthy);
+            assertEquals(5, node.timeouts.get());
+        }
+    }
+
+    @Test
+    void resetsFailureCountAfterSuccess() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.ROUND_ROBIN, 2)) {
+            ClickHouseNodes.Node node = nodes.select(null);
+            nodes.record(node, new ConnectException("Connection refused"));
+            nodes.record(node, null);
+            nodes.record(node, new ConnectException("Connection refused"));
+            assertTrue(node.healthy);
+        }
+    }
+
+    @Test
+    void usesEjectedNodesWhenNoneIsHealthy() {
+        try (ClickHouseNodes nodes = nodes(ClickHouseNodes.Strategy.ROUND_ROBIN, 1)) {
+            for (int i = 0; i < ENDPOINTS.size(); i++) {
+                nodes.record(nodes.select(null), new ConnectException("Connection refused"));
+            }
+            ClickHouseNodes.Node node = nodes.select(null);
+            assertNotNull(node);
+            assertFalse(node.healthy);
+        }
+    }
+
+    private static ClickHouseNodes nodes(ClickHouseNodes.Strategy strategy, int ejectAfterFailures) {
+        return new ClickHouseNodes(ENDPOINTS, endpoint -> new Client.Builder()
+                .addEndpoint(endpoint)
+                .setUsername("default")
+                .setPassword("")
+                .build(), strategy, ejectAfterFailures, NO_HEALTH_CHECK);
+    }
+}
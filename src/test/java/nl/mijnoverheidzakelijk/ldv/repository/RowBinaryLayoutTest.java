@@ -0,0 +1,51 @@
+package nl.mijnoverheidzakelijk.ldv.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowBinaryLayoutTest {
+
+    @Test
+    void currentLayoutMatchesLeadingColumnsOfTable() {
+        List<String> columns = columnsOf(new ClickHouseSchema("spans", 0, 0, null, null, false).createTable("spans"));
+        List<String> layout = List.of(RowBinaryLayout.CURRENT.columns().split(", "));
+        assertEquals(layout, columns.subList(0, layout.size()));
+    }
+
+    @Test
+    void everyLayoutIsPrefixOfCurrentLayout() {
+        for (RowBinaryLayout layout : RowBinaryLayout.values()) {
+            assertTrue(RowBinaryLayout.CURRENT.columns().startsWith(layout.columns()), layout.name());
+        }
+    }
+
+    @Test
+    void parsesLabels() {
+        for (RowBinaryLayout layout : RowBinaryLayout.values()) {
+            assertEquals(layout, RowBinaryLayout.parse(layout.label()));
+        }
+        assertEquals("resource-id", RowBinaryLayout.RESOURCE_ID.label());
+        assertEquals(RowBinaryLayout.TYPED_ATTRIBUTES, RowBinaryLayout.parse(" Typed-Attributes "));
+        assertThrows(IllegalArgumentException.class, () -> RowBinaryLayout.parse("json"));
+    }
+
+    /**
+     * @return the column names of a {@code CREATE TABLE} statement, in order
+     */
+    private static List<String> columnsOf(String ddl) {
+        List<String> columns = new ArrayList<>();
+        for (String line : ddl.split("\n")) {
+            if (line.startsWith("    ") && !line.startsWith("    INDEX ") && !line.startsWith("    PROJECTION ")) {
+                String column = line.trim();
+                columns.add(column.substring(0, column.indexOf(' ')));
+            }
+        }
+        return columns;
+    }
+}
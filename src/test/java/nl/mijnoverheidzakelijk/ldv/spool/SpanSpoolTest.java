@@ -0,0 +1,118 @@
+package nl.mijnoverheidzakelijk.ldv.spool;
+
+import com.clickhouse.data.ClickHouseFormat;
+import nl.mijnoverheidzakelijk.ldv.repository.RowBinaryLayout;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpanSpoolTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shipsRecordsLeftByPreviousRun() throws Exception {
+        try (SpanSpool spool = open((format, layout, payload) -> {
+            throw new IOException("ClickHouse is down");
+        })) {
+            assertTrue(spool.append(ClickHouseFormat.RowBinary, bytes("first"), 0, 5));
+            assertTrue(spool.append(ClickHouseFormat.JSONEachRow, bytes("second"), 0, 6));
+        }
+
+        BlockingQueue<Shipped> shipped = new LinkedBlockingQueue<>();
+        try (SpanSpool spool = open(collect(shipped))) {
+            assertEquals(new Shipped(ClickHouseFormat.RowBinary, RowBinaryLayout.CURRENT, "first"), shipped.poll(10, TimeUnit.SECONDS));
+            assertEquals(ClickHouseFormat.JSONEachRow, shipped.poll(10, TimeUnit.SECONDS).format());
+        }
+    }
+
+    @Test
+    void doesNotShipConfirmedRecordsAgain() throws Exception {
+        BlockingQueue<Shipped> shipped = new LinkedBlockingQueue<>();
+        try (SpanSpool spool = open(collect(shipped))) {
+            spool.append(ClickHouseFormat.RowBinary, bytes("once"), 0, 4);
+            assertNotNull(shipped.poll(10, TimeUnit.SECONDS));
+        }
+
+        try (SpanSpool spool = open(collect(shipped))) {
+            assertNull(shipped.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void shipsSegmentOfFirstVersionWithItsLayout() throws Exception {
+        byte[] payload = bytes("v1-row");
+        ByteBuffer segment = ByteBuffer.allocate(SpoolSegment.HEADER_SIZE + SpoolSegment.recordSize(payload.length))
+                .putInt(0x4C445653)
+                .putInt(1)
+                .putInt(payload.length)
+                .put(SpoolSegment.STATE_PENDING)
+                .put((byte) 2)
+                .put(payload);
+        Files.write(directory.resolve("segment-00000000000000000007.ldv"), segment.array());
+
+        BlockingQueue<Shipped> shipped = new LinkedBlockingQueue<>();
+        try (SpanSpool spool = open(collect(shipped))) {
+            assertEquals(new Shipped(ClickHouseFormat.RowBinary, RowBinaryLayout.RESOURCE_ID, "v1-row"), shipped.poll(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void quarantinesRejectedRecords() throws Exception {
+        BlockingQueue<Shipped> shipped = new LinkedBlockingQueue<>();
+        SpanSpool.Sink sink = (format, layout, payload) -> {
+            if (format == ClickHouseFormat.RowBinary) {
+                throw new SpanSpool.RejectedBatchException("Cannot parse input", null);
+            }
+            collect(shipped).ship(format, layout, payload);
+        };
+        try (SpanSpool spool = open(sink)) {
+            spool.append(ClickHouseFormat.RowBinary, bytes("broken"), 0, 6);
+            spool.append(ClickHouseFormat.JSONEachRow, bytes("{}"), 0, 2);
+            assertEquals(ClickHouseFormat.JSONEachRow, shipped.poll(10, TimeUnit.SECONDS).format());
+        }
+
+        try (Stream<Path> files = Files.list(directory.resolve("quarantine"))) {
+            List<Path> quarantined = files.toList();
+            assertEquals(1, quarantined.size());
+            assertTrue(quarantined.get(0).getFileName().toString().endsWith(".typed-attributes.rowbinary"));
+            assertArrayEquals(bytes("broken"), Files.readAllBytes(quarantined.get(0)));
+        }
+    }
+
+    private SpanSpool open(SpanSpool.Sink sink) throws IOException {
+        return new SpanSpool(directory, 4096, 1024 * 1024, 50, SpanSpool.FsyncPolicy.NEVER, 1_000, sink);
+    }
+
+    private static SpanSpool.Sink collect(BlockingQueue<Shipped> shipped) {
+        return (format, layout, payload) -> {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            shipped.add(new Shipped(format, layout, new String(bytes, StandardCharsets.UTF_8)));
+        };
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Shipped(ClickHouseFormat format, RowBinaryLayout layout, String payload) {
+    }
+}